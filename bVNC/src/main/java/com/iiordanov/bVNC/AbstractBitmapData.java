@@ -20,6 +20,8 @@
 
 package com.iiordanov.bVNC;
 
+import java.util.Arrays;
+
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -113,6 +115,14 @@ abstract public class AbstractBitmapData {
      */
     public void prepareFullUpdateRequest(boolean incremental) {};
 
+    /**
+     * @return true if rectangles that do not overlap may be written into bitmapPixels, and passed to
+     * updateBitmap(), from several threads at once
+     */
+    boolean allowsConcurrentUpdates() {
+        return false;
+    }
+
     /**
      * Determine if a rectangle in full-frame coordinates can be drawn in the existing buffer
      * @param x Top left x
@@ -191,6 +201,23 @@ abstract public class AbstractBitmapData {
         drawRect(x, y, w, h, paint);
     }
 
+    /**
+     * Fills a rectangle of bitmapPixels with one color. Unlike fillRect() this does not touch
+     * the bitmap, so that many fills can be shown with a single updateBitmap() afterwards.
+     */
+    void fillPixels(int x, int y, int w, int h, int pix) {
+        int offset = offset(x, y);
+        if (w == 1) {
+            for (int j = 0; j < h; j++, offset += bitmapwidth) {
+                bitmapPixels[offset] = pix;
+            }
+        } else {
+            for (int j = 0; j < h; j++, offset += bitmapwidth) {
+                Arrays.fill(bitmapPixels, offset, offset + w, pix);
+            }
+        }
+    }
+
     public void imageRect(int x, int y, int w, int h, int[] pix) {
         for (int j = 0; j < h; j++) {
             try {
@@ -240,6 +267,42 @@ abstract public class AbstractBitmapData {
      */
     abstract void syncScroll();
 
+    /**
+     * Creates a scaled down copy of the screen, averaging the pixels each thumbnail pixel covers.
+     * Backends without a bitmap of the whole screen are read from bitmapPixels.
+     * @return the thumbnail, or null if there is nothing to copy
+     */
+    Bitmap createThumbnail(int dstWidth, int dstHeight) {
+        if (mbitmap != null) {
+            return Bitmap.createScaledBitmap(mbitmap, dstWidth, dstHeight, true);
+        }
+        if (bitmapPixels == null) {
+            return null;
+        }
+
+        int[] thumbnail = new int[dstWidth * dstHeight];
+        for (int dy = 0; dy < dstHeight; dy++) {
+            int y0 = dy * bitmapheight / dstHeight;
+            int y1 = Math.max((dy + 1) * bitmapheight / dstHeight, y0 + 1);
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int x0 = dx * bitmapwidth / dstWidth;
+                int x1 = Math.max((dx + 1) * bitmapwidth / dstWidth, x0 + 1);
+                int r = 0, g = 0, b = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int p = y * bitmapwidth + x0, end = y * bitmapwidth + x1; p < end; p++) {
+                        int pix = bitmapPixels[p];
+                        r += pix >> 16 & 0xFF;
+                        g += pix >> 8 & 0xFF;
+                        b += pix & 0xFF;
+                    }
+                }
+                int n = (y1 - y0) * (x1 - x0);
+                thumbnail[dy * dstWidth + dx] = 0xFF000000 | (r / n) << 16 | (g / n) << 8 | (b / n);
+            }
+        }
+        return Bitmap.createBitmap(thumbnail, dstWidth, dstHeight, Bitmap.Config.ARGB_8888);
+    }
+
     /**
      * Release resources
      */
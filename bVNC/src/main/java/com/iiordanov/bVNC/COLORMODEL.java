@@ -26,20 +26,37 @@ import com.undatech.remoteClientUi.R;
 import java.io.IOException;
 
 public enum COLORMODEL {
-    C24bit, C256, C64, C8, C4, C2;
+    C24bit, C64K, C256, C64, C8, C4, C2;
 
     public int bpp() {
         switch (this) {
         case C24bit:
             return 4;
+        case C64K:
+            return 2;
         default:
             return 1;
         }
     }
 
+    /**
+     * @return the converter from pixels in this color model to color ints
+     */
+    PixelConverter pixelConverter() {
+        if (this == C64K) {
+            return new PixelConverter.Rgb565();
+        }
+        int[] palette = palette();
+        if (palette == null) {
+            return new PixelConverter.TrueColor();
+        }
+        return new PixelConverter.Indexed(palette);
+    }
+
     public int[] palette() {
         switch (this) {
         case C24bit:
+        case C64K:
             return null;
         case C256:
             return ColorModel256.colors;
@@ -64,9 +81,14 @@ public enum COLORMODEL {
     public void setPixelFormat(RfbConnectable rfb) throws IOException {
         switch (this) {
         case C24bit:
-            // 24-bit color
+            // 24-bit color, little endian with red at bit 16. That is the layout of a color
+            // int, which lets PixelConverter.TrueColor copy whole rows without converting.
             rfb.writeSetPixelFormat(32, 24, false, true, 255, 255, 255, 16, 8, 0, false);
             break;
+        case C64K:
+            // 16-bit RGB565, little endian. PixelConverter.Rgb565 looks each pixel up in a table.
+            rfb.writeSetPixelFormat(16, 16, false, true, 31, 63, 31, 11, 5, 0, false);
+            break;
         case C256:
             rfb.writeSetPixelFormat(8, 8, false, true, 7, 7, 3, 0, 3, 6, false);
             break;
@@ -91,10 +113,35 @@ public enum COLORMODEL {
         }
     }
 
+    /**
+     * Finds the color model that requests the given pixel format. Greyscale models decode
+     * the same way as the color models of the same depth, so those are returned for them.
+     * @return the color model, or null if none matches
+     */
+    public static COLORMODEL fromPixelFormat(int bitsPerPixel, int depth) {
+        if (bitsPerPixel == 32 && depth == 24)
+            return C24bit;
+        if (bitsPerPixel == 16 && depth == 16)
+            return C64K;
+        if (bitsPerPixel == 8) {
+            switch (depth) {
+            case 8:
+                return C256;
+            case 6:
+                return C64;
+            case 3:
+                return C8;
+            }
+        }
+        return null;
+    }
+
     public String toString() {
         switch (this) {
         case C24bit:
             return App.getContext().getString(R.string.color_24_bit);
+        case C64K:
+            return App.getContext().getString(R.string.color_64k);
         case C256:
             return App.getContext().getString(R.string.color_256);
         case C64:
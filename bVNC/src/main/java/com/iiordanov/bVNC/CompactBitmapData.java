@@ -86,6 +86,14 @@ class CompactBitmapData extends AbstractBitmapData {
         return true;
     }
 
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#allowsConcurrentUpdates()
+     */
+    @Override
+    boolean allowsConcurrentUpdates() {
+        return true;
+    }
+
     @Override
     public int offset(int x, int y) {
         return y * bitmapwidth + x;
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+package com.iiordanov.bVNC;
+
+//
+// A CompressedInStream decompresses a given number of bytes of an
+// underlying InStream at a time, keeping the decompression state from one
+// rectangle to the next. ZRLE-style decoders read through it without
+// knowing which compression the encoding uses.
+//
+
+abstract public class CompressedInStream extends InStream {
+
+  // setUnderlying() makes the next bytesIn bytes of is the compressed
+  // input.
+
+  abstract public void setUnderlying(InStream is, int bytesIn);
+
+  // reset() decompresses and throws away whatever is left of the input, so
+  // the state is ready for the next rectangle.
+
+  abstract public void reset() throws Exception;
+
+  // readAvailable() copies up to length decompressed bytes into data and
+  // returns how many were copied, or 0 once the input is used up and
+  // there is no more output.
+
+  abstract public int readAvailable(byte[] data, int offset, int length) throws Exception;
+}
@@ -622,10 +622,10 @@ public class ConnectionBean extends AbstractConnectionBean implements Connection
     		case Constants.COLORMODEL_256_COLORS:
     			setColorModel(COLORMODEL.C256.nameString());
     			break;
-    			// use the best currently available model
     		case Constants.COLORMODEL_16BIT:
-    			setColorModel(COLORMODEL.C24bit.nameString());
+    			setColorModel(COLORMODEL.C64K.nameString());
     			break;
+    			// use the best currently available model
     		case Constants.COLORMODEL_24BIT:
     			setColorModel(COLORMODEL.C24bit.nameString());
     			break;
@@ -201,6 +201,17 @@ public class Constants {
     public static final String forceLandscapeTag = "forceLandscape";
     public static final String rAltAsIsoL3ShiftTag = "rAltAsIsoL3Shift";
     public static final String leftHandedModeTag = "leftHandedModeTag";
+    public static final String pipelinedReceiveTag = "pipelinedReceive";
+    public static final String parallelDecodingTag = "parallelDecoding";
+    public static final String recordSessionsTag = "recordSessions";
+    public static final String adaptiveEncodingTag = "adaptiveEncoding";
+    public static final String tiledFramebufferTag = "tiledFramebuffer";
+    public static final String inputBatchingLatencyTag = "inputBatchingLatency";
+    public static final String continuousUpdatesTag = "continuousUpdates";
+    public static final String multipleSessionsTag = "multipleSessions";
+    public static final String sshDirectChannelTag = "sshDirectChannel";
+    public static final String replayFileExtra = "replayFile";
+    public static final String replayRealTimeExtra = "replayRealTime";
     public static final String defaultInputMethodTag = "defaultInputMethod";
     public static final String permissionsRequested = "permissionsRequested";
 
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ * Copyright (C) 2010 Michael A. MacDonald
+ * Copyright (C) 2004 Horizon Wimba.  All Rights Reserved.
+ * Copyright (C) 2001-2003 HorizonLive.com, Inc.  All Rights Reserved.
+ * Copyright (C) 2001,2002 Constantin Kaplinsky.  All Rights Reserved.
+ * Copyright (C) 2000 Tridia Corporation.  All Rights Reserved.
+ * Copyright (C) 1999 AT&T Laboratories Cambridge.  All Rights Reserved.
+ * 
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.IOException;
+
+import android.graphics.RectF;
+
+import com.iiordanov.bVNC.input.RemotePointer;
+
+/**
+ * Decodes the XCursor and RichCursor pseudo-encodings into the soft cursor. The rectangle
+ * position is the cursor's hot spot.
+ */
+class CursorDecoder implements EncodingDecoder {
+    private final Decoder decoder;
+    private final int encodingType;
+    private final boolean discardCursorShapeUpdates;
+
+    /**
+     * @param encodingType RfbProto.EncodingXCursor or RfbProto.EncodingRichCursor
+     * @param discardCursorShapeUpdates true to read cursor shapes without showing them
+     */
+    CursorDecoder(Decoder decoder, int encodingType, boolean discardCursorShapeUpdates) {
+        this.decoder = decoder;
+        this.encodingType = encodingType;
+        this.discardCursorShapeUpdates = discardCursorShapeUpdates;
+    }
+
+    /**
+     * Handles cursor shape update (XCursor and RichCursor encodings).
+     */
+    @Override
+    public void decode(RfbProto rfb, int hotX, int hotY, int w, int h) throws IOException {
+
+        RemoteCanvas vncCanvas = decoder.vncCanvas;
+        AbstractBitmapData bitmapData = decoder.bitmapData;
+        RemotePointer p = vncCanvas.getPointer();
+        int x = p.getX();
+        int y = p.getY();
+        
+        if (w * h == 0)
+            return;
+
+        // Ignore cursor shape data if requested by user.
+        /*if (ignoreCursorUpdates) {
+            int bytesPerRow = (w + 7) / 8;
+            int bytesMaskData = bytesPerRow * h;
+
+            if (encodingType == RfbProto.EncodingXCursor) {
+                rfb.is.skipBytes(6 + bytesMaskData * 2);
+            } else {
+                // RfbProto.EncodingRichCursor
+                rfb.is.skipBytes(w * h * bytesPerPixel + bytesMaskData);
+            }
+            return;
+        }*/
+        int[] cursorShape = decodeCursorShape(rfb, w, h);
+
+        if (!discardCursorShapeUpdates) {
+            // Set cursor rectangle.
+            bitmapData.setCursorRect(x, y, w, h, hotX, hotY);
+
+            // Decode cursor pixel data, and set pixel data into bitmap drawable.
+            bitmapData.setSoftCursor(cursorShape);
+
+            // Show the cursor.
+            RectF r = bitmapData.getCursorRect();
+            vncCanvas.reDraw(r.left, r.top, r.width(), r.height());
+        }
+    }
+
+    /**
+     * Decode cursor pixel data and return it in an int array.
+     * @param width
+     * @param height
+     * @return
+     * @throws IOException
+     */
+    private int[] decodeCursorShape(RfbProto rfb, int width, int height) throws IOException {
+
+        int bytesPerRow = (width + 7) / 8;
+        int bytesMaskData = bytesPerRow * height;
+
+        int[] softCursorPixels = new int[width * height];
+
+        if (encodingType == RfbProto.EncodingXCursor) {
+
+            // Read foreground and background colors of the cursor.
+            byte[] rgb = new byte[6];
+            rfb.readFully(rgb);
+            int[] colors = { (0xFF000000 | (rgb[3] & 0xFF) << 16 |
+                    (rgb[4] & 0xFF) << 8 | (rgb[5] & 0xFF)),
+                    (0xFF000000 | (rgb[0] & 0xFF) << 16 |
+                            (rgb[1] & 0xFF) << 8 | (rgb[2] & 0xFF)) };
+
+            // Read pixel and mask data.
+            byte[] pixBuf = new byte[bytesMaskData];
+            rfb.readFully(pixBuf);
+            byte[] maskBuf = new byte[bytesMaskData];
+            rfb.readFully(maskBuf);
+
+            // Decode pixel data into softCursorPixels[].
+            byte pixByte, maskByte;
+            int x, y, n, result;
+            int i = 0;
+            for (y = 0; y < height; y++) {
+                for (x = 0; x < width / 8; x++) {
+                    pixByte = pixBuf[y * bytesPerRow + x];
+                    maskByte = maskBuf[y * bytesPerRow + x];
+                    for (n = 7; n >= 0; n--) {
+                        if ((maskByte >> n & 1) != 0) {
+                            result = colors[pixByte >> n & 1];
+                        } else {
+                            result = 0;    // Transparent pixel
+                        }
+                        softCursorPixels[i++] = result;
+                    }
+                }
+                for (n = 7; n >= 8 - width % 8; n--) {
+                    if ((maskBuf[y * bytesPerRow + x] >> n & 1) != 0) {
+                        result = colors[pixBuf[y * bytesPerRow + x] >> n & 1];
+                    } else {
+                        result = 0;        // Transparent pixel
+                    }
+                    softCursorPixels[i++] = result;
+                }
+            }
+
+        } else {
+            // encodingType == rfb.EncodingRichCursor
+            PixelConverter converter = decoder.pixelConverter;
+            final int bytesPerPixel = converter.bytesPerPixel;
+
+            // Read pixel and mask data.
+            byte[] pixBuf = new byte[width * height * bytesPerPixel];
+            rfb.readFully(pixBuf);
+            byte[] maskBuf = new byte[bytesMaskData];
+            rfb.readFully(maskBuf);
+
+            // Decode pixel data into softCursorPixels[].
+            byte pixByte, maskByte;
+            int x, y, n, result;
+            int i = 0;
+            for (y = 0; y < height; y++) {
+                for (x = 0; x < width / 8; x++) {
+                    maskByte = maskBuf[y * bytesPerRow + x];
+                    for (n = 7; n >= 0; n--) {
+                        if ((maskByte >> n & 1) != 0) {
+                            result = converter.pixel(pixBuf, i * bytesPerPixel);
+                        } else {
+                            result = 0;    // Transparent pixel
+                        }
+                        softCursorPixels[i++] = result;
+                    }
+                }
+                for (n = 7; n >= 8 - width % 8; n--) {
+                    if ((maskBuf[y * bytesPerRow + x] >> n & 1) != 0) {
+                        result = converter.pixel(pixBuf, i * bytesPerPixel);
+                    } else {
+                        result = 0;        // Transparent pixel
+                    }
+                    softCursorPixels[i++] = result;
+                }
+            }
+
+        }
+
+        return softCursorPixels;
+    }
+}
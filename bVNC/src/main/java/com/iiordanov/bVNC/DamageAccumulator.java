@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import android.graphics.Rect;
+
+/**
+ * Collects the framebuffer areas damaged between two display frames so that they can be
+ * invalidated at once. Rectangles are merged into their bounding box, which is what the
+ * view system would do with several invalidate() calls during one frame anyway.
+ */
+class DamageAccumulator {
+    private final Rect damage = new Rect();
+    private boolean pending = false;
+
+    private long rectsMerged = 0;
+    private long invalidatesIssued = 0;
+
+    /**
+     * Adds a damaged rectangle in framebuffer coordinates.
+     * @return true if there was no damage pending before, meaning a flush has to be scheduled
+     */
+    synchronized boolean add(int x, int y, int w, int h) {
+        rectsMerged++;
+        if (!pending) {
+            damage.set(x, y, x + w, y + h);
+            pending = true;
+            return true;
+        }
+        damage.union(x, y, x + w, y + h);
+        return false;
+    }
+
+    /**
+     * Moves the pending damage into out and clears it.
+     * @return false if there was nothing to flush
+     */
+    synchronized boolean take(Rect out) {
+        if (!pending) {
+            return false;
+        }
+        out.set(damage);
+        damage.setEmpty();
+        pending = false;
+        invalidatesIssued++;
+        return true;
+    }
+
+    synchronized long getRectsMerged() {
+        return rectsMerged;
+    }
+
+    synchronized long getInvalidatesIssued() {
+        return invalidatesIssued;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the worker threads used to decode rectangles, and parts of them, in parallel. They
+ * are shared by all open sessions, so the number of decoding threads does not grow with the
+ * number of sessions.
+ */
+class DecoderPool {
+    // Past this many threads the memory bandwidth, not the cores, is the limit.
+    static final int MAX_THREADS = 8;
+    static final int IDLE_SECONDS = 5;
+
+    private static ForkJoinPool pool;
+    private static ThreadPoolExecutor executor;
+
+    static synchronized ForkJoinPool get() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism());
+        }
+        return pool;
+    }
+
+    /**
+     * @return threads for decoding whole rectangles in the background. Tasks run on them must
+     * not wait for one another, since a task waiting for one still queued would hold a thread
+     * it may need.
+     */
+    static synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            int threads = parallelism();
+            executor = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Decoder-" + count++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            // Threads go away when all sessions are idle or closed.
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    static int parallelism() {
+        return Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+/**
+ * Picks the preferred encoding, compression level and JPEG quality from what the connection
+ * is actually doing. For every framebuffer update it is told how many bytes arrived, how long
+ * the update took and how long each rectangle took to decode, and from that it keeps moving
+ * averages of the link throughput and of the decoding cost per pixel of each encoding.
+ *
+ * The link is put in one of three tiers. Fast links get settings that are cheap to decode,
+ * slow links get the strongest compression and lower JPEG quality. Tier boundaries have a
+ * margin around them and a new choice has to be seen for several updates in a row, and not
+ * too soon after the last switch, before it is made, so the encodings do not flap when the
+ * throughput hovers around a boundary.
+ *
+ * Throughput is measured as bytes per second of time spent waiting in reads from the socket,
+ * so it is an estimate of what the link delivered while the client was waiting for it. When
+ * receiving is pipelined, those reads happen on the reader thread rather than while decoding.
+ * The decoding cost leaves the waiting of the protocol thread out. Small updates are dominated
+ * by latency rather than throughput, and updates during which the reads were not paced by the
+ * network, because data had piled up in the socket buffers, would overstate it. Both are left
+ * out of the estimate.
+ */
+class EncodingController {
+    static final int TIER_CONSTRAINED = 0;
+    static final int TIER_BROADBAND = 1;
+    static final int TIER_LAN = 2;
+
+    // Boundaries between the tiers, in kbit/s.
+    static final long BROADBAND_KBPS = 3000;
+    static final long LAN_KBPS = 25000;
+
+    // A boundary has to be crossed by this fraction before the tier changes.
+    static final double HYSTERESIS = 0.25;
+
+    // Weight of the newest sample in the moving averages.
+    static final double ALPHA = 0.3;
+
+    // Updates smaller than this do not say much about throughput.
+    static final long MIN_SAMPLE_BYTES = 16384;
+
+    // Reads that waited less than this in total were served from buffers rather than the link.
+    static final long MIN_WAIT_NANOS = 1000000;
+
+    // How many updates in a row have to agree on new settings before they are used.
+    static final int STABLE_UPDATES = 3;
+
+    // Minimum time between two switches.
+    static final long MIN_SWITCH_INTERVAL_MS = 4000;
+
+    // Above this share of update time spent decoding, the client rather than the link is the bottleneck.
+    static final double DECODE_BOUND = 0.5;
+
+    private static final int NUM_ENCODINGS = RfbProto.EncodingTightZstd + 1;
+
+    // The Tight flavor the user asked for, used whenever Tight is the right choice.
+    private final int tightEncoding;
+
+    private int encoding;
+    private int compressLevel;
+    private int jpegQuality;
+    private int tier = -1;
+
+    private volatile double kbps = -1;
+    private double decodeShare = 0;
+    private final double[] nanosPerPixel = new double[NUM_ENCODINGS];
+
+    private long updateStart;
+    private long updateBytes;
+    private long updateReadNanos;
+    private long updateStalledNanos;
+    private long updateDecodeNanos;
+    private final long[] rectNanos = new long[NUM_ENCODINGS];
+    private final long[] rectPixels = new long[NUM_ENCODINGS];
+
+    private int candidateEncoding, candidateCompressLevel, candidateJpegQuality;
+    private int candidateCount = 0;
+    private long lastSwitch = 0;
+
+    /**
+     * @param encoding the encoding the user prefers, used until there are measurements
+     * @param compressLevel initial compression level
+     * @param jpegQuality initial JPEG quality
+     */
+    EncodingController(int encoding, int compressLevel, int jpegQuality) {
+        this.encoding = encoding;
+        this.compressLevel = compressLevel;
+        this.jpegQuality = jpegQuality;
+        tightEncoding = encoding == RfbProto.EncodingTightZstd ? encoding : RfbProto.EncodingTight;
+    }
+
+    /**
+     * Called when a framebuffer update starts to arrive.
+     * @param bytes number of bytes read from the socket so far
+     * @param readNanos time spent waiting in reads from the socket so far
+     * @param stalledNanos time the socket went unread so far because the client was behind
+     */
+    void startUpdate(long bytes, long readNanos, long stalledNanos) {
+        updateStart = System.nanoTime();
+        updateBytes = bytes;
+        updateReadNanos = readNanos;
+        updateStalledNanos = stalledNanos;
+        updateDecodeNanos = 0;
+        for (int i = 0; i < NUM_ENCODINGS; i++) {
+            rectNanos[i] = 0;
+            rectPixels[i] = 0;
+        }
+    }
+
+    /**
+     * Called after each rectangle of the update has been decoded.
+     * @param nanos time spent decoding the rectangle, leaving out waiting for its data
+     */
+    void rectDecoded(int rectEncoding, int w, int h, long nanos) {
+        updateDecodeNanos += nanos;
+        // Only encodings that can be picked are worth keeping statistics on.
+        if (rectEncoding >= 0 && rectEncoding < NUM_ENCODINGS && rectEncoding != RfbProto.EncodingCopyRect) {
+            rectNanos[rectEncoding] += nanos;
+            rectPixels[rectEncoding] += (long) w * h;
+        }
+    }
+
+    /**
+     * Called when the whole update has been decoded.
+     * @param bytes number of bytes read from the socket so far
+     * @param readNanos time spent waiting in reads from the socket so far
+     * @param stalledNanos time the socket went unread so far because the client was behind
+     * @return true if the encoding, compression level or JPEG quality changed
+     */
+    boolean endUpdate(long bytes, long readNanos, long stalledNanos) {
+        long now = System.nanoTime();
+        long updateNanos = Math.max(1, now - updateStart);
+        bytes -= updateBytes;
+        long waitNanos = readNanos - updateReadNanos;
+        boolean paced = waitNanos >= MIN_WAIT_NANOS && stalledNanos == updateStalledNanos;
+
+        for (int i = 0; i < NUM_ENCODINGS; i++) {
+            if (rectPixels[i] > 0) {
+                nanosPerPixel[i] = average(nanosPerPixel[i], (double) rectNanos[i] / rectPixels[i]);
+            }
+        }
+
+        if (bytes < MIN_SAMPLE_BYTES) {
+            return false;
+        }
+        decodeShare = average(decodeShare, (double) updateDecodeNanos / updateNanos);
+        if (paced) {
+            kbps = kbps < 0 ? bytes * 8e6 / waitNanos : average(kbps, bytes * 8e6 / waitNanos);
+        } else if (kbps < 0) {
+            return false;
+        }
+
+        tier = nextTier();
+        chooseFor(tier);
+        if (candidateEncoding == encoding && candidateCompressLevel == compressLevel &&
+                candidateJpegQuality == jpegQuality) {
+            return false;
+        }
+        if (candidateCount < STABLE_UPDATES || now / 1000000 - lastSwitch < MIN_SWITCH_INTERVAL_MS) {
+            return false;
+        }
+        encoding = candidateEncoding;
+        compressLevel = candidateCompressLevel;
+        jpegQuality = candidateJpegQuality;
+        lastSwitch = now / 1000000;
+        candidateCount = 0;
+        return true;
+    }
+
+    private static double average(double current, double sample) {
+        return current == 0 ? sample : current + ALPHA * (sample - current);
+    }
+
+    /**
+     * Works out the tier of the link, only leaving the current one once the throughput is
+     * clearly outside of it.
+     */
+    private int nextTier() {
+        int measured = kbps >= LAN_KBPS ? TIER_LAN : (kbps >= BROADBAND_KBPS ? TIER_BROADBAND : TIER_CONSTRAINED);
+        if (tier < 0 || measured == tier) {
+            return measured;
+        }
+        if (measured > tier) {
+            long boundary = tier == TIER_CONSTRAINED ? BROADBAND_KBPS : LAN_KBPS;
+            return kbps >= boundary * (1 + HYSTERESIS) ? measured : tier;
+        } else {
+            long boundary = tier == TIER_LAN ? LAN_KBPS : BROADBAND_KBPS;
+            return kbps < boundary * (1 - HYSTERESIS) ? measured : tier;
+        }
+    }
+
+    /**
+     * Picks the settings for a tier and counts for how many updates in a row they were picked.
+     */
+    private void chooseFor(int tier) {
+        int e, c, q;
+        boolean decodeBound = decodeShare > DECODE_BOUND;
+        switch (tier) {
+        case TIER_LAN:
+            // Bandwidth is plentiful, so the encoding that is cheapest to decode here wins.
+            // ZRLE is lossless and tried first, Tight with the best JPEG quality replaces it
+            // if it turned out to be cheaper.
+            e = RfbProto.EncodingZRLE;
+            double zrle = nanosPerPixel[RfbProto.EncodingZRLE];
+            double tight = nanosPerPixel[tightEncoding];
+            if (zrle > 0 && tight > 0 && tight < zrle) {
+                e = tightEncoding;
+            }
+            c = 1;
+            q = 9;
+            break;
+        case TIER_BROADBAND:
+            e = tightEncoding;
+            c = decodeBound ? 3 : 6;
+            q = 7;
+            break;
+        default:
+            e = tightEncoding;
+            c = 9;
+            q = kbps < BROADBAND_KBPS / 3 ? 2 : 4;
+            break;
+        }
+        if (e == candidateEncoding && c == candidateCompressLevel && q == candidateJpegQuality) {
+            candidateCount++;
+        } else {
+            candidateEncoding = e;
+            candidateCompressLevel = c;
+            candidateJpegQuality = q;
+            candidateCount = 1;
+        }
+    }
+
+    int getEncoding() {
+        return encoding;
+    }
+
+    int getCompressLevel() {
+        return compressLevel;
+    }
+
+    int getJpegQuality() {
+        return jpegQuality;
+    }
+
+    /**
+     * @return the measured throughput of the link in kbit/s, or -1 if there is no measurement yet
+     */
+    double getKbps() {
+        return kbps;
+    }
+
+    @Override
+    public String toString() {
+        return "tier " + tier + ", " + Math.round(kbps) + " kbit/s, " + Math.round(decodeShare * 100) +
+                "% decoding, encoding " + encoding + ", compression " + compressLevel + ", quality " + jpegQuality;
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+/**
+ * Decodes the rectangles of one encoding into the framebuffer. Decoder keeps one implementation
+ * per encoding number and hands each rectangle to it, so an encoding is added by registering
+ * its decoder there. Implementations keep their own buffers, hold per-rectangle state in
+ * locals, and are only called from the protocol thread.
+ */
+interface EncodingDecoder {
+    /**
+     * Reads one rectangle of this encoding from rfb and draws it.
+     * @param x Top left x
+     * @param y Top left y
+     * @param w width (pixels)
+     * @param h height (pixels)
+     */
+    void decode(RfbProto rfb, int x, int y, int w, int h) throws Exception;
+}
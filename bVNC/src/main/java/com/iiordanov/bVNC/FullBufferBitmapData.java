@@ -251,4 +251,12 @@ class FullBufferBitmapData extends AbstractBitmapData {
             return false;
         return true;
     }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#allowsConcurrentUpdates()
+     */
+    @Override
+    boolean allowsConcurrentUpdates() {
+        return true;
+    }
 }
@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ * Copyright (C) 2010 Michael A. MacDonald
+ * Copyright (C) 2004 Horizon Wimba.  All Rights Reserved.
+ * Copyright (C) 2001-2003 HorizonLive.com, Inc.  All Rights Reserved.
+ * Copyright (C) 2001,2002 Constantin Kaplinsky.  All Rights Reserved.
+ * Copyright (C) 2000 Tridia Corporation.  All Rights Reserved.
+ * Copyright (C) 1999 AT&T Laboratories Cambridge.  All Rights Reserved.
+ * 
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import android.graphics.Color;
+
+/**
+ * Decodes Hextile rectangles, which are sent as 16x16 tiles that are each raw, or a background
+ * color with solid subrectangles.
+ */
+class HextileDecoder implements EncodingDecoder {
+    final Decoder decoder;
+    final RawDecoder raw;
+
+    // These colors should be kept between decodeTile() calls.
+    private int background, foreground;
+    private byte[] colorBuf = new byte[4];
+    private byte[] subrectBuf = new byte[128];
+
+    /**
+     * @param raw reads the tiles that are sent raw
+     */
+    HextileDecoder(Decoder decoder, RawDecoder raw) {
+        this.decoder = decoder;
+        this.raw = raw;
+    }
+
+    @Override
+    public void decode(RfbProto rfb, int x, int y, int w, int h) throws Exception {
+        AbstractBitmapData bitmapData = decoder.bitmapData;
+        boolean valid = bitmapData.validDraw(x, y, w, h);
+        background = Color.BLACK;
+        foreground = Color.BLACK;
+
+        for (int ty = y; ty < y + h; ty += 16) {
+            int th = 16;
+            if (y + h - ty < 16)
+                th = y + h - ty;
+
+            for (int tx = x; tx < x + w; tx += 16) {
+                int tw = 16;
+                if (x + w - tx < 16)
+                    tw = x + w - tx;
+
+                decodeTile(rfb, bitmapData, tx, ty, tw, th, valid);
+            }
+        }
+
+        // The tiles were all written to bitmapPixels, show them at once.
+        if ( ! valid)
+            return;
+
+        bitmapData.updateBitmap(x, y, w, h);
+        decoder.vncCanvas.reDraw(x, y, w, h);
+    }
+
+    //
+    // Handle one tile in the Hextile-encoded data.
+    //
+    private void decodeTile(RfbProto rfb, AbstractBitmapData bitmapData, int tx, int ty, int tw, int th,
+                            boolean valid) throws Exception {
+
+        int subencoding = rfb.is.readUnsignedByte();
+
+        // Is it compressed by an encoding built on Hextile?
+        if (decodeCompressedTile(rfb, bitmapData, subencoding, tx, ty, tw, th, valid))
+            return;
+
+        // Is it a raw-encoded sub-rectangle?
+        if ((subencoding & RfbProto.HextileRaw) != 0) {
+            raw.readPixels(rfb, tx, ty, tw, th, valid);
+            return;
+        }
+
+        PixelConverter converter = decoder.pixelConverter;
+        final int bytesPerPixel = converter.bytesPerPixel;
+
+        // Read and draw the background if specified.
+        if (bytesPerPixel > colorBuf.length) {
+          throw new RuntimeException("impossible colordepth");
+        }
+        if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0) {
+            rfb.readFully(colorBuf, 0, bytesPerPixel);
+            background = converter.pixel(colorBuf, 0);
+        }
+        if ( valid )
+            bitmapData.fillPixels(tx, ty, tw, th, background);
+
+        // Read the foreground color if specified.
+        if ((subencoding & RfbProto.HextileForegroundSpecified) != 0) {
+            rfb.readFully(colorBuf, 0, bytesPerPixel);
+            foreground = converter.pixel(colorBuf, 0);
+        }
+
+        // Done with this tile if there is no sub-rectangles.
+        if ((subencoding & RfbProto.HextileAnySubrects) == 0)
+            return;
+
+        int nSubrects = rfb.is.readUnsignedByte();
+        boolean coloured = (subencoding & RfbProto.HextileSubrectsColoured) != 0;
+        int bufsize = nSubrects * 2;
+        if (coloured) {
+            bufsize += nSubrects * bytesPerPixel;
+        }
+        if (subrectBuf.length < bufsize)
+            subrectBuf = new byte[bufsize];
+        rfb.readFully(subrectBuf, 0, bufsize);
+
+        fillSubrects(bitmapData, subrectBuf, 0, nSubrects, coloured, tx, ty, tw, th, valid);
+    }
+
+    /**
+     * Lets an encoding built on Hextile handle the tiles it sends in its own form. Called with
+     * the subencoding byte already read.
+     * @return true if the tile was handled, false to decode it as a plain Hextile tile
+     */
+    boolean decodeCompressedTile(RfbProto rfb, AbstractBitmapData bitmapData, int subencoding,
+                                 int tx, int ty, int tw, int th, boolean valid) throws Exception {
+        return false;
+    }
+
+    /**
+     * Decodes a tile whose background, foreground and subrectangles are already in data, laid
+     * out as they would follow the subencoding byte of a plain Hextile tile.
+     */
+    void decodeTileData(AbstractBitmapData bitmapData, byte[] data, int subencoding,
+                        int tx, int ty, int tw, int th, boolean valid) {
+        PixelConverter converter = decoder.pixelConverter;
+        final int bytesPerPixel = converter.bytesPerPixel;
+        int i = 0;
+
+        if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0) {
+            background = converter.pixel(data, i);
+            i += bytesPerPixel;
+        }
+        if ( valid )
+            bitmapData.fillPixels(tx, ty, tw, th, background);
+
+        if ((subencoding & RfbProto.HextileForegroundSpecified) != 0) {
+            foreground = converter.pixel(data, i);
+            i += bytesPerPixel;
+        }
+
+        if ((subencoding & RfbProto.HextileAnySubrects) == 0)
+            return;
+
+        int nSubrects = data[i++] & 0xFF;
+        boolean coloured = (subencoding & RfbProto.HextileSubrectsColoured) != 0;
+        fillSubrects(bitmapData, data, i, nSubrects, coloured, tx, ty, tw, th, valid);
+    }
+
+    //
+    // Draw the subrectangles of a tile, starting at buf[i].
+    //
+    private void fillSubrects(AbstractBitmapData bitmapData, byte[] buf, int i, int nSubrects,
+                              boolean coloured, int tx, int ty, int tw, int th, boolean valid) {
+        PixelConverter converter = decoder.pixelConverter;
+        final int bytesPerPixel = converter.bytesPerPixel;
+        int fg = foreground;
+        int b1, b2, sx, sy, sw, sh;
+        for (int j = 0; j < nSubrects; j++) {
+            // Either each sub-rectangle has its own color, or they all use the foreground.
+            if (coloured) {
+                fg = converter.pixel(buf, i);
+                i += bytesPerPixel;
+            }
+            b1 = buf[i++] & 0xFF;
+            b2 = buf[i++] & 0xFF;
+            sx = tx + (b1 >> 4);
+            sy = ty + (b1 & 0xf);
+            sw = (b2 >> 4) + 1;
+            sh = (b2 & 0xf) + 1;
+            if ( valid )
+                Decoder.fillSubrect(bitmapData, tx, ty, tw, th, sx, sy, sw, sh, fg);
+        }
+        foreground = fg;
+    }
+}
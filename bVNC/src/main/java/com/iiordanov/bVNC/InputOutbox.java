@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * Collects keyboard and pointer messages and sends them together, at most maxLatencyMs after
+ * the first of them was queued. While messages wait, a pointer move replaces the move queued
+ * right before it, so a fast drag costs one message per send instead of one per touch event.
+ * Events that press or release buttons keep their position and are never replaced, and key
+ * events are always sent, all in the order they were queued.
+ */
+class InputOutbox implements Runnable {
+    private final static String TAG = "InputOutbox";
+
+    /**
+     * Where the batched messages go.
+     */
+    interface Sink {
+        void send(byte[] b, int len) throws IOException;
+    }
+
+    private final Sink sink;
+    private final long maxLatencyMs;
+
+    // Guarded by this.
+    private byte[] pending = new byte[256];
+    private int pendingLength = 0;
+    private long firstQueuedAt;
+    // Where the last queued message starts if it is a pointer move, -1 otherwise.
+    private int lastPointerMove = -1;
+    // Buttons held in the last pointer event queued.
+    private int lastButtons = -1;
+    private boolean stopped = false;
+
+    private byte[] sending = new byte[256];
+    private Thread sender;
+
+    private long eventsQueued = 0;
+    private long movesCoalesced = 0;
+    private long sends = 0;
+
+    InputOutbox(Sink sink, int maxLatencyMs) {
+        this.sink = sink;
+        this.maxLatencyMs = maxLatencyMs;
+    }
+
+    /**
+     * Starts the thread that sends the queued messages.
+     */
+    void start() {
+        sender = new Thread(this, TAG);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queues one or more complete client messages. They are dropped once the outbox is stopped
+     * or has failed to send.
+     */
+    synchronized void add(byte[] b, int len) {
+        if (stopped || len == 0)
+            return;
+        eventsQueued++;
+
+        // A pointer event on its own that does not change the buttons is a move.
+        boolean move = len == 6 && b[0] == RfbProto.PointerEvent && (b[1] & 0xff) == lastButtons;
+        if (move && lastPointerMove >= 0) {
+            System.arraycopy(b, 2, pending, lastPointerMove + 2, 4);
+            movesCoalesced++;
+            return;
+        }
+        lastButtons = buttonsAfter(b, len, lastButtons);
+
+        if (pendingLength + len > pending.length) {
+            byte[] bigger = new byte[Math.max(pending.length * 2, pendingLength + len)];
+            System.arraycopy(pending, 0, bigger, 0, pendingLength);
+            pending = bigger;
+        }
+        if (pendingLength == 0) {
+            firstQueuedAt = System.currentTimeMillis();
+            notify();
+        }
+        lastPointerMove = move ? pendingLength : -1;
+        System.arraycopy(b, 0, pending, pendingLength, len);
+        pendingLength += len;
+    }
+
+    /**
+     * Finds the buttons held after a run of key and pointer event messages.
+     */
+    private static int buttonsAfter(byte[] b, int len, int buttons) {
+        int i = 0;
+        while (i < len) {
+            if (b[i] == RfbProto.PointerEvent) {
+                buttons = b[i + 1] & 0xff;
+                i += 6;
+            } else {
+                i += 8;
+            }
+        }
+        return buttons;
+    }
+
+    /**
+     * Stops the sender thread. Messages still waiting are dropped, since the connection is going away.
+     */
+    void stop() {
+        synchronized (this) {
+            stopped = true;
+            notify();
+        }
+        Log.i(TAG, "Queued " + eventsQueued + " input events, coalesced " + movesCoalesced +
+                " pointer moves, sent " + sends + " batches");
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                int len;
+                synchronized (this) {
+                    while (!stopped && pendingLength == 0) {
+                        wait();
+                    }
+                    long wait;
+                    while (!stopped && (wait = firstQueuedAt + maxLatencyMs - System.currentTimeMillis()) > 0) {
+                        wait(wait);
+                    }
+                    if (stopped)
+                        return;
+                    // Swap buffers so new messages can be queued while these are written.
+                    byte[] b = sending;
+                    sending = pending;
+                    pending = b.length >= sending.length ? b : new byte[sending.length];
+                    len = pendingLength;
+                    pendingLength = 0;
+                    lastPointerMove = -1;
+                    sends++;
+                }
+                sink.send(sending, len);
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to send input events to VNC server.");
+            e.printStackTrace();
+        } finally {
+            // Nothing is sent any more, so nothing more is kept either.
+            synchronized (this) {
+                stopped = true;
+                pendingLength = 0;
+                lastPointerMove = -1;
+            }
+        }
+    }
+}
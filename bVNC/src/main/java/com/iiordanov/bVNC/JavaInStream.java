@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+package com.iiordanov.bVNC;
+
+//
+// A JavaInStream reads a known number of bytes from a java.io.InputStream
+// through a small buffer, so that a ZlibInStream can inflate data while it
+// is still arriving instead of after all of it has been read into memory.
+// It never reads past the given number of bytes, which leaves the input
+// stream positioned at the next message.
+//
+
+public class JavaInStream extends InStream {
+
+  static final int defaultBufSize = 16384;
+
+  public JavaInStream(int bufSize) {
+    b = new byte[bufSize];
+    ptr = end = ptrOffset = 0;
+  }
+
+  public JavaInStream() { this(defaultBufSize); }
+
+  public void setUnderlying(java.io.InputStream is, int length) {
+    underlying = is;
+    bytesLeft = length;
+    ptr = end = 0;
+  }
+
+  // finish() throws away whatever was not read of the bytes given to
+  // setUnderlying(), and lets go of the input stream.
+
+  public void finish() throws Exception {
+    ptr = end = 0;
+    if (underlying == null) return;
+
+    while (bytesLeft > 0) {
+      long n = underlying.skip(bytesLeft);
+      if (n <= 0) {
+        if (underlying.read() < 0)
+          throw new java.io.EOFException();
+        n = 1;
+      }
+      bytesLeft -= n;
+    }
+    underlying = null;
+  }
+
+  public int pos() { return ptrOffset + ptr; }
+
+  // overrun() blocks only until itemSize bytes are buffered, and hands on
+  // whatever else has already arrived.
+
+  protected int overrun(int itemSize, int nItems) throws Exception {
+    if (itemSize > b.length)
+      throw new Exception("JavaInStream overrun: max itemSize exceeded");
+    if (underlying == null)
+      throw new Exception("JavaInStream overrun: no underlying stream");
+
+    if (end - ptr != 0)
+      System.arraycopy(b, ptr, b, 0, end - ptr);
+
+    ptrOffset += ptr;
+    end -= ptr;
+    ptr = 0;
+
+    while (end < itemSize) {
+      int n = Math.min(b.length - end, bytesLeft);
+      if (n == 0)
+        throw new Exception("JavaInStream overrun: end of data");
+      n = underlying.read(b, end, n);
+      if (n < 0)
+        throw new java.io.EOFException();
+      end += n;
+      bytesLeft -= n;
+    }
+
+    if (itemSize * nItems > end)
+      nItems = end / itemSize;
+
+    return nItems;
+  }
+
+  private java.io.InputStream underlying;
+  private int ptrOffset;
+  private int bytesLeft;
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Decouples reading from the network from decoding what was read. A reader thread
+ * drains the underlying stream into pooled chunks and hands them to the consumer
+ * through a bounded queue, so the socket keeps being read while a large rectangle is
+ * inflated and drawn. When the queue is full the reader blocks, which pushes back on
+ * the server through TCP flow control.
+ */
+public class PipelinedInputStream extends InputStream implements Runnable {
+    private final static String TAG = "PipelinedInputStream";
+
+    static final int CHUNK_SIZE = 65536;
+    static final int QUEUE_DEPTH = 16;
+
+    private static class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    // Marks the end of the underlying stream, whether it ended normally or with an error.
+    private final Chunk endOfStream = new Chunk(0);
+
+    private final InputStream in;
+    private final ArrayBlockingQueue<Chunk> filled;
+    private final ArrayBlockingQueue<Chunk> free;
+
+    private Thread reader;
+    private volatile boolean stopped = false;
+    private volatile IOException readerException;
+
+    // Time the reader spent waiting for the consumer to free a chunk.
+    private volatile long stalledNanos = 0;
+
+    // Chunk currently being consumed, and the read position within it.
+    private Chunk current;
+    private int position;
+    private boolean ended = false;
+
+    public PipelinedInputStream(InputStream in) {
+        this.in = in;
+        // One chunk can be held by the reader and one by the consumer on top of the queue. The
+        // filled queue has room for all of them and the end of stream marker, so that the marker
+        // can always be queued.
+        filled = new ArrayBlockingQueue<Chunk>(QUEUE_DEPTH + 3);
+        free = new ArrayBlockingQueue<Chunk>(QUEUE_DEPTH + 2);
+        for (int i = 0; i < QUEUE_DEPTH + 2; i++) {
+            free.add(new Chunk(CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * Starts the thread that reads from the underlying stream.
+     */
+    public void start() {
+        reader = new Thread(this, TAG);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                Chunk chunk = free.poll();
+                if (chunk == null) {
+                    long start = System.nanoTime();
+                    chunk = free.take();
+                    stalledNanos += System.nanoTime() - start;
+                }
+                int n = in.read(chunk.data, 0, CHUNK_SIZE);
+                if (n < 0) {
+                    break;
+                }
+                // Gather whatever else already arrived so that chunks are not mostly empty.
+                while (n < CHUNK_SIZE && in.available() > 0) {
+                    int more = in.read(chunk.data, n, CHUNK_SIZE - n);
+                    if (more < 0) {
+                        break;
+                    }
+                    n += more;
+                }
+                chunk.length = n;
+                filled.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            Log.v(TAG, "Reader thread interrupted");
+        } catch (IOException e) {
+            if (!stopped) {
+                readerException = e;
+            }
+        } finally {
+            // There is always room for the marker, since the queue can hold every chunk and it.
+            filled.offer(endOfStream);
+        }
+    }
+
+    /**
+     * Makes sure there is unread data in the current chunk, blocking for the reader if necessary.
+     * @return false if the underlying stream has ended
+     */
+    private boolean fill() throws IOException {
+        if (current != null && position < current.length) {
+            return true;
+        }
+        if (ended || stopped) {
+            return false;
+        }
+        if (current != null) {
+            free.offer(current);
+            current = null;
+        }
+        Chunk next;
+        try {
+            next = filled.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for data");
+        }
+        if (next == endOfStream) {
+            ended = true;
+            if (readerException != null) {
+                throw readerException;
+            }
+            return false;
+        }
+        current = next;
+        position = 0;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    /**
+     * @return the time the reader has spent waiting for the consumer so far in nanoseconds.
+     * While it waits the socket is not read, so data piles up in the socket buffers and later
+     * reads are not paced by the network.
+     */
+    long getStalledNanos() {
+        return stalledNanos;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (current == null) {
+            return 0;
+        }
+        return current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopped = true;
+        if (reader != null) {
+            reader.interrupt();
+        }
+        in.close();
+    }
+}
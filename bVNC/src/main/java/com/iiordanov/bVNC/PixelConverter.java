@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+package com.iiordanov.bVNC;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Turns pixels in the pixel format negotiated with the server into the color ints kept in
+ * bitmapPixels. One converter is picked when the pixel format is set, so the decoders do not
+ * have to look at the pixel size for every pixel. Converters hold no state and may be used
+ * from several threads.
+ */
+abstract class PixelConverter {
+    // Bytes per pixel as sent in Raw, Zlib, RRE and Hextile data.
+    final int bytesPerPixel;
+    // Bytes per compressed pixel (CPIXEL) in ZRLE data.
+    final int bytesPerCompressedPixel;
+    // Bytes per pixel of Tight data that went through the copy filter (TPIXEL).
+    final int bytesPerTightPixel;
+
+    PixelConverter(int bytesPerPixel, int bytesPerCompressedPixel, int bytesPerTightPixel) {
+        this.bytesPerPixel = bytesPerPixel;
+        this.bytesPerCompressedPixel = bytesPerCompressedPixel;
+        this.bytesPerTightPixel = bytesPerTightPixel;
+    }
+
+    /**
+     * Converts count pixels of bytesPerPixel bytes each.
+     */
+    abstract void convert(byte[] src, int srcOff, int[] dst, int dstOff, int count);
+
+    /**
+     * Converts count ZRLE compressed pixels.
+     */
+    abstract void convertCompressed(byte[] src, int srcOff, int[] dst, int dstOff, int count);
+
+    /**
+     * Converts count Tight pixels.
+     */
+    abstract void convertTight(byte[] src, int srcOff, int[] dst, int dstOff, int count);
+
+    /**
+     * Converts one pixel of bytesPerPixel bytes into an opaque color.
+     */
+    abstract int pixel(byte[] src, int off);
+
+    /**
+     * Converts one ZRLE compressed pixel.
+     */
+    abstract int compressedPixel(byte[] src, int off);
+
+    /**
+     * Converts one Tight pixel into an opaque color.
+     */
+    abstract int tightPixel(byte[] src, int off);
+
+    /**
+     * @return the table that compressed pixels index, as ZrleTileDecoder takes it, or null if
+     * compressed pixels hold the color itself
+     */
+    int[] lookupTable() {
+        return null;
+    }
+
+    /**
+     * 32 bits per pixel, little endian, with red, green and blue at bits 16, 8 and 0. That is
+     * the layout of a color int, so whole rows are copied through an int view of the bytes
+     * instead of being put together pixel by pixel. The padding byte ends up in the alpha
+     * bits, which the framebuffer bitmaps ignore as they are opaque.
+     */
+    static class TrueColor extends PixelConverter {
+        TrueColor() {
+            super(4, 3, 3);
+        }
+
+        @Override
+        void convert(byte[] src, int srcOff, int[] dst, int dstOff, int count) {
+            ByteBuffer.wrap(src, srcOff, count * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+                    .get(dst, dstOff, count);
+        }
+
+        @Override
+        void convertCompressed(byte[] src, int srcOff, int[] dst, int dstOff, int count) {
+            // The three least significant bytes of the pixel, so blue comes first.
+            for (int end = dstOff + count; dstOff < end; dstOff++, srcOff += 3) {
+                dst[dstOff] = (src[srcOff + 2] & 0xFF) << 16 | (src[srcOff + 1] & 0xFF) << 8 | (src[srcOff] & 0xFF);
+            }
+        }
+
+        @Override
+        void convertTight(byte[] src, int srcOff, int[] dst, int dstOff, int count) {
+            // Tight always sends red first.
+            for (int end = dstOff + count; dstOff < end; dstOff++, srcOff += 3) {
+                dst[dstOff] = (src[srcOff] & 0xFF) << 16 | (src[srcOff + 1] & 0xFF) << 8 | (src[srcOff + 2] & 0xFF);
+            }
+        }
+
+        @Override
+        int pixel(byte[] src, int off) {
+            return 0xFF000000 | compressedPixel(src, off);
+        }
+
+        @Override
+        int compressedPixel(byte[] src, int off) {
+            return (src[off + 2] & 0xFF) << 16 | (src[off + 1] & 0xFF) << 8 | (src[off] & 0xFF);
+        }
+
+        @Override
+        int tightPixel(byte[] src, int off) {
+            return 0xFF000000 | (src[off] & 0xFF) << 16 | (src[off + 1] & 0xFF) << 8 | (src[off + 2] & 0xFF);
+        }
+    }
+
+    /**
+     * 16 bits per pixel, little endian, with 5 bits of red, 6 of green and 5 of blue. Pixels
+     * are looked up in a table of all 65536 colors, filled in once. ZRLE and Tight send these
+     * pixels whole, as they do not fit in three bytes.
+     */
+    static class Rgb565 extends PixelConverter {
+        private static final int[] colors = new int[65536];
+
+        static {
+            for (int v = 0; v < colors.length; v++) {
+                int r = v >> 11 & 0x1F;
+                int g = v >> 5 & 0x3F;
+                int b = v & 0x1F;
+                // Repeat the top bits in the low ones so that the maximum maps to 0xFF.
+                colors[v] = 0xFF000000 | (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8 | (b << 3 | b >> 2);
+            }
+        }
+
+        Rgb565() {
+            super(2, 2, 2);
+        }
+
+        /**
+         * @return the color of the 16-bit value v
+         */
+        static int color(int v) {
+            return colors[v];
+        }
+
+        @Override
+        void convert(byte[] src, int srcOff, int[] dst, int dstOff, int count) {
+            for (int end = dstOff + count; dstOff < end; dstOff++, srcOff += 2) {
+                dst[dstOff] = colors[(src[srcOff] & 0xFF) | (src[srcOff + 1] & 0xFF) << 8];
+            }
+        }
+
+        @Override
+        void convertCompressed(byte[] src, int srcOff, int[] dst, int dstOff, int count) {
+            convert(src, srcOff, dst, dstOff, count);
+        }
+
+        @Override
+        void convertTight(byte[] src, int srcOff, int[] dst, int dstOff, int count) {
+            convert(src, srcOff, dst, dstOff, count);
+        }
+
+        @Override
+        int pixel(byte[] src, int off) {
+            return colors[(src[off] & 0xFF) | (src[off + 1] & 0xFF) << 8];
+        }
+
+        @Override
+        int compressedPixel(byte[] src, int off) {
+            return pixel(src, off);
+        }
+
+        @Override
+        int tightPixel(byte[] src, int off) {
+            return pixel(src, off);
+        }
+
+        @Override
+        int[] lookupTable() {
+            return colors;
+        }
+    }
+
+    /**
+     * 8 bits per pixel, looked up in the palette of the color model.
+     */
+    static class Indexed extends PixelConverter {
+        private final int[] palette;
+
+        Indexed(int[] palette) {
+            super(1, 1, 1);
+            this.palette = palette;
+        }
+
+        @Override
+        void convert(byte[] src, int srcOff, int[] dst, int dstOff, int count) {
+            for (int end = dstOff + count; dstOff < end; dstOff++, srcOff++) {
+                dst[dstOff] = palette[src[srcOff] & 0xFF];
+            }
+        }
+
+        @Override
+        void convertCompressed(byte[] src, int srcOff, int[] dst, int dstOff, int count) {
+            convert(src, srcOff, dst, dstOff, count);
+        }
+
+        @Override
+        void convertTight(byte[] src, int srcOff, int[] dst, int dstOff, int count) {
+            convert(src, srcOff, dst, dstOff, count);
+        }
+
+        @Override
+        int pixel(byte[] src, int off) {
+            return palette[src[off] & 0xFF];
+        }
+
+        @Override
+        int compressedPixel(byte[] src, int off) {
+            return palette[src[off] & 0xFF];
+        }
+
+        @Override
+        int tightPixel(byte[] src, int off) {
+            return palette[src[off] & 0xFF];
+        }
+
+        @Override
+        int[] lookupTable() {
+            return palette;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ * Copyright (C) 2010 Michael A. MacDonald
+ * Copyright (C) 2004 Horizon Wimba.  All Rights Reserved.
+ * Copyright (C) 2001-2003 HorizonLive.com, Inc.  All Rights Reserved.
+ * Copyright (C) 2001,2002 Constantin Kaplinsky.  All Rights Reserved.
+ * Copyright (C) 2000 Tridia Corporation.  All Rights Reserved.
+ * Copyright (C) 1999 AT&T Laboratories Cambridge.  All Rights Reserved.
+ * 
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.IOException;
+
+/**
+ * Decodes Raw rectangles, which are sent as rows of pixels in the negotiated pixel format.
+ */
+class RawDecoder implements EncodingDecoder {
+    // Rows are read in blocks of at most this many bytes.
+    private static final int READ_BYTES = 65536;
+
+    private final Decoder decoder;
+    private byte[] buffer = new byte[128];
+
+    RawDecoder(Decoder decoder) {
+        this.decoder = decoder;
+    }
+
+    @Override
+    public void decode(RfbProto rfb, int x, int y, int w, int h) throws IOException {
+        AbstractBitmapData bitmapData = decoder.bitmapData;
+        boolean valid = bitmapData.validDraw(x, y, w, h);
+        readPixels(rfb, x, y, w, h, valid);
+
+        if ( ! valid)
+            return;
+
+        bitmapData.updateBitmap(x, y, w, h);
+        decoder.vncCanvas.reDraw(x, y, w, h);
+    }
+
+    //
+    // Read raw pixel data into bitmapPixels, or skip over it if the area is not valid.
+    // The caller updates the bitmap.
+    //
+    void readPixels(RfbProto rfb, int x, int y, int w, int h, boolean valid) throws IOException {
+        AbstractBitmapData bitmapData = decoder.bitmapData;
+        PixelConverter converter = decoder.pixelConverter;
+        int[] pixels = bitmapData.bitmapPixels;
+        final int l = w * converter.bytesPerPixel;
+        if (l == 0)
+            return;
+        // Read as many rows at once as fit in the buffer.
+        int rows = Math.max(1, Math.min(h, READ_BYTES / l));
+        if (rows * l > buffer.length) {
+            buffer = new byte[rows * l];
+        }
+        byte[] buf = buffer;
+        for (int dy = y; dy < y + h; dy += rows) {
+            int n = Math.min(rows, y + h - dy);
+            rfb.readFully(buf, 0, n * l);
+            if ( ! valid)
+                continue;
+            for (int j = 0; j < n; j++) {
+                converter.convert(buf, j * l, pixels, bitmapData.offset(x, dy + j), w);
+            }
+        }
+    }
+}
@@ -49,6 +49,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -62,6 +63,7 @@ import android.util.AttributeSet;
 import android.util.Base64;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Display;
 import android.view.KeyEvent;
 import android.view.inputmethod.BaseInputConnection;
@@ -119,6 +121,9 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
 
     Database database;
     public SSHConnection sshConnection = null;
+    // When the VNC session over SSH started, for reporting its throughput and CPU use.
+    private long sshSessionStart;
+    private long sshSessionStartCpu;
 
     // VNC protocol connection
     public RfbConnectable rfbconn = null;
@@ -197,11 +202,19 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
      */
     boolean isOpaque = false;
 
+    /*
+     * A recorded VNC session to play back instead of connecting, and whether to keep its timing.
+     */
+    private File replayFile;
+    private boolean replayRealTime = false;
+
     public boolean spiceUpdateReceived = false;
 
     boolean sshTunneled = false;
 
-    long lastDraw;
+    // Framebuffer area damaged since the last display frame.
+    final DamageAccumulator damage = new DamageAccumulator();
+    private final Rect damageRect = new Rect();
 
     boolean userPanned = false;
 
@@ -331,6 +344,7 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
         connection = conn;
         sshTunneled = (connection.getConnectionType() == Constants.CONN_TYPE_SSH);
         handler = new RemoteCanvasHandler(getContext(), this, connection);
+        SessionManager.get().register(this);
 
         try {
             if (isSpice) {
@@ -525,8 +539,23 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
         Log.i(TAG, "Initializing connection to: " + connection.getAddress() + ", port: " + connection.getPort());
         boolean sslTunneled = connection.getConnectionType() == Constants.CONN_TYPE_STUNNEL;
         decoder = new Decoder(this, connection.getUseLocalCursor() == Constants.CURSOR_FORCE_LOCAL);
+        decoder.setParallelDecoding(Utils.querySharedPreferenceBoolean(this.getContext(),
+                Constants.parallelDecodingTag));
         rfb = new RfbProto(decoder, this, connection.getPrefEncoding(), connection.getViewOnly(),
                 sslTunneled, connection.getIdHashAlgorithm(), connection.getIdHash(), connection.getX509KeySignature());
+        rfb.setPipelinedReceive(Utils.querySharedPreferenceBoolean(this.getContext(),
+                Constants.pipelinedReceiveTag));
+        rfb.setAdaptiveEncoding(Utils.querySharedPreferenceBoolean(this.getContext(),
+                Constants.adaptiveEncodingTag));
+        rfb.setInputBatchingLatency(Integer.parseInt(Utils.querySharedPreferenceString(this.getContext(),
+                Constants.inputBatchingLatencyTag, "0")));
+        rfb.setContinuousUpdates(Utils.querySharedPreferenceBoolean(this.getContext(),
+                Constants.continuousUpdatesTag));
+        if (replayFile != null) {
+            rfb.setReplayFile(replayFile, replayRealTime);
+        } else if (Utils.querySharedPreferenceBoolean(this.getContext(), Constants.recordSessionsTag)) {
+            rfb.setRecordingFile(newRecordingFile());
+        }
 
         rfbconn = rfb;
         pointer = new RemoteVncPointer(rfbconn, RemoteCanvas.this, handler);
@@ -535,14 +564,49 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
         keyboard = new RemoteVncKeyboard(rfbconn, RemoteCanvas.this, handler, rAltAsIsoL3Shift);
     }
 
+    /**
+     * Plays back a recorded VNC session instead of connecting to the server.
+     * @param replayFile session file written while recording sessions was enabled
+     * @param realTime whether to keep the recorded timing or play back as fast as possible
+     */
+    public void setReplay(File replayFile, boolean realTime) {
+        this.replayFile = replayFile;
+        this.replayRealTime = realTime;
+    }
+
+    /**
+     * Picks a new file to record a VNC session to.
+     */
+    private File newRecordingFile() {
+        File dir = getContext().getExternalFilesDir("recordings");
+        if (dir == null) {
+            dir = new File(getContext().getFilesDir(), "recordings");
+        }
+        dir.mkdirs();
+        return new File(dir, "session-" + System.currentTimeMillis() + ".fbs");
+    }
+
     /**
      * Starts a VNC connection using the TightVNC backend.
      */
     private void startVncConnection() throws Exception {
 
         try {
-            String address = getAddress();
-            int vncPort = getPort(connection.getPort());
+            String address;
+            int vncPort;
+            if (replayFile != null) {
+                // A replayed session has no server, and must not set up an SSH tunnel to one.
+                address = "";
+                vncPort = 0;
+            } else if (sshTunneled && Utils.querySharedPreferenceBoolean(getContext(),
+                    Constants.sshDirectChannelTag)) {
+                address = connection.getAddress();
+                vncPort = initializeSshTunnel(connection.getPort());
+                rfb.setSshTunnel(sshConnection);
+            } else {
+                address = getAddress();
+                vncPort = getPort(connection.getPort());
+            }
             Log.i(TAG, "Establishing VNC session to: " + address + ", port: " + vncPort);
             // TODO: VNC Server cert is not set when the connection is SSH tunneled because there at
             // TODO: present it is assumed the connection is either SSH tunneled or x509 encrypted,
@@ -568,9 +632,21 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
                     Utils.messageAndStackTraceAsString(e));
         }
 
+        sshSessionStart = SystemClock.elapsedRealtime();
+        sshSessionStartCpu = android.os.Process.getElapsedCpuTime();
         rfb.writeClientInit();
         rfb.readServerInit();
 
+        if (replayFile != null) {
+            // Decode the recording in the pixel format it was recorded in.
+            COLORMODEL cm = COLORMODEL.fromPixelFormat(rfb.bitsPerPixel, rfb.depth);
+            if (cm == null) {
+                throw new Exception("Unsupported pixel format in recording: " + rfb.bitsPerPixel + "bpp");
+            }
+            connection.setColorModel(cm.nameString());
+            decoder.setColorModel(cm);
+        }
+
         // Is custom resolution enabled?
         if(connection.getRdpResType() != Constants.VNC_GEOM_SELECT_DISABLED) {
             waitUntilInflated();
@@ -1069,11 +1145,7 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
         int result = 0;
 
         if (sshTunneled) {
-            sshConnection = new SSHConnection(connection, getContext(), handler);
-            // TODO: Take the AutoX stuff out to a separate function.
-            int newPort = sshConnection.initializeSSHTunnel();
-            if (newPort > 0)
-                port = newPort;
+            port = initializeSshTunnel(port);
             result = sshConnection.createLocalPortForward(port);
         } else {
             if (isVnc && port <= 20) {
@@ -1086,6 +1158,43 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
     }
 
 
+    /**
+     * Connects and authenticates to the SSH server, or takes an open connection to it from the
+     * pool, and runs AutoX if it is enabled.
+     *
+     * @return the port x11vnc was started on if it was determined with AutoX, or the given port
+     */
+    private int initializeSshTunnel(int port) throws Exception {
+        // The connection made to fetch the host key of a new server is used for the tunnel.
+        if (sshConnection == null) {
+            sshConnection = new SSHConnection(connection, getContext(), handler);
+        }
+        if (isVnc) {
+            sshConnection.setCompression(SshTransportProfile.useCompression(getContext(),
+                    connection.getSshServer(), connection.getPrefEncoding()));
+        }
+        // TODO: Take the AutoX stuff out to a separate function.
+        int newPort = sshConnection.initializeSSHTunnel();
+        if (newPort > 0)
+            port = newPort;
+        return port;
+    }
+
+    /**
+     * Logs the throughput and CPU use of the VNC session over SSH, and remembers the throughput
+     * for deciding on compression the next time.
+     */
+    private void reportSshTransport() {
+        long seconds = Math.max(1, (SystemClock.elapsedRealtime() - sshSessionStart) / 1000);
+        long cpu = android.os.Process.getElapsedCpuTime() - sshSessionStartCpu;
+        long linkKbps = rfb.getLinkKbps();
+        Log.i(TAG, "SSH transport " + sshConnection.describeTransport() + ": received " +
+                rfb.getBytesReceived() / 1024 + " KB in " + seconds + " s, " + linkKbps +
+                " kbit/s link, " + cpu * 100 / (seconds * 1000) + "% CPU");
+        SshTransportProfile.recordLinkSpeed(getContext(), connection.getSshServer(), linkKbps,
+                sshConnection.isCompressed());
+    }
+
     /**
      * Returns localhost if using SSH tunnel or saved VNC address.
      *
@@ -1113,10 +1222,14 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
 
         int fbsize = rfbconn.framebufferWidth() * rfbconn.framebufferHeight();
 
-        capacity = BCFactory.getInstance().getBCActivityManager().getMemoryClass(Utils.getActivityManager(getContext()));
+        // Other open sessions keep the memory their framebuffers use.
+        capacity = SessionManager.get().memoryBudget(this,
+                BCFactory.getInstance().getBCActivityManager().getMemoryClass(Utils.getActivityManager(getContext())));
 
+        boolean tiled = Utils.querySharedPreferenceBoolean(getContext(), Constants.tiledFramebufferTag);
+        int compactMultiplier = tiled ? TiledBitmapData.CAPACITY_MULTIPLIER : CompactBitmapData.CAPACITY_MULTIPLIER;
         if (connection.getForceFull() == BitmapImplHint.AUTO) {
-            if (fbsize * CompactBitmapData.CAPACITY_MULTIPLIER <= capacity * 1024 * 1024) {
+            if (fbsize * compactMultiplier <= capacity * 1024 * 1024) {
                 useFull = true;
                 compact = true;
             } else if (fbsize * FullBufferBitmapData.CAPACITY_MULTIPLIER <= capacity * 1024 * 1024) {
@@ -1141,6 +1254,9 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
                 if (!compact) {
                     myDrawable = new FullBufferBitmapData(rfbconn, this, capacity);
                     android.util.Log.i(TAG, "Using FullBufferBitmapData.");
+                } else if (tiled) {
+                    myDrawable = new TiledBitmapData(rfbconn, this, isSpice|isOpaque);
+                    android.util.Log.i(TAG, "Using TiledBitmapData.");
                 } else {
                     myDrawable = new CompactBitmapData(rfbconn, this, isSpice|isOpaque);
                     android.util.Log.i(TAG, "Using CompactBufferBitmapData.");
@@ -1153,6 +1269,7 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
                 android.util.Log.i(TAG, "Using LargeBitmapData.");
             }
         }
+        reserveDrawableMemory();
 
         try {
             if (isRdp || isOpaque || connection.getUseLocalCursor() == Constants.CURSOR_FORCE_LOCAL) {
@@ -1170,6 +1287,29 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
     }
 
 
+    /**
+     * Tells the session manager roughly how much memory the drawable uses, so that other
+     * sessions leave it alone.
+     */
+    private void reserveDrawableMemory() {
+        long fbsize = (long)rfbconn.framebufferWidth() * rfbconn.framebufferHeight();
+        long bytes;
+        if (!isVnc) {
+            bytes = fbsize * UltraCompactBitmapData.CAPACITY_MULTIPLIER;
+        } else if (!useFull) {
+            // LargeBitmapData makes its bitmap as large as the capacity allows.
+            bytes = (long)capacity * 1024 * 1024;
+        } else if (myDrawable instanceof TiledBitmapData) {
+            bytes = fbsize * TiledBitmapData.CAPACITY_MULTIPLIER;
+        } else if (compact) {
+            bytes = fbsize * CompactBitmapData.CAPACITY_MULTIPLIER;
+        } else {
+            bytes = fbsize * FullBufferBitmapData.CAPACITY_MULTIPLIER;
+        }
+        SessionManager.get().reserveMemory(this, (int)(bytes / (1024 * 1024)));
+    }
+
+
     /**
      * Disposes of the old drawable which holds the remote desktop data.
      */
@@ -1218,6 +1358,7 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
                 }
             }
         }
+        reserveDrawableMemory();
         handler.post(drawableSetter);
         handler.post(setModes);
         myDrawable.syncScroll();
@@ -1279,6 +1420,11 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
      */
     public void writeFullUpdateRequest(boolean incremental) {
         myDrawable.prepareFullUpdateRequest(incremental);
+        // With continuous updates the server sends incremental updates without being asked.
+        if (rfb != null && rfb.continueUpdates(myDrawable.getXoffset(), myDrawable.getYoffset(),
+                myDrawable.bmWidth(), myDrawable.bmHeight(), incremental)) {
+            return;
+        }
         rfbconn.writeFramebufferUpdateRequest(myDrawable.getXoffset(), myDrawable.getYoffset(),
                 myDrawable.bmWidth(), myDrawable.bmHeight(), incremental);
     }
@@ -1309,13 +1455,19 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
         if (rfbconn != null) {
             rfbconn.close();
         }
+        SessionManager.get().unregister(this);
 
         if (handler != null) {
             handler.removeCallbacksAndMessages(null);
         }
+        Log.d(TAG, "Redraws: " + damage.getRectsMerged() + " rects merged into " +
+                damage.getInvalidatesIssued() + " invalidates");
 
         // Close the SSH tunnel.
         if (sshConnection != null) {
+            if (rfb != null && sshSessionStart > 0) {
+                reportSshTransport();
+            }
             sshConnection.terminateSSHTunnel();
             sshConnection = null;
         }
@@ -1609,32 +1761,49 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
         return bitmap;
     }
 
-    Runnable invalidateCanvasRunnable = new Runnable() {
+    /**
+     * Invalidates the area damaged since the last frame, once per display frame.
+     */
+    private final Choreographer.FrameCallback flushDamageCallback = new Choreographer.FrameCallback() {
         @Override
-        public void run() {
-            Log.d(TAG, "invalidateCanvasRunnable");
-            postInvalidate();
+        public void doFrame(long frameTimeNanos) {
+            if (!damage.take(damageRect)) {
+                return;
+            }
+            float scale = getZoomFactor();
+            float shiftedX = damageRect.left - shiftX;
+            float shiftedY = damageRect.top - shiftY;
+            // Make the box slightly larger to avoid artifacts due to truncation errors.
+            invalidate((int) ((shiftedX - 1) * scale), (int) ((shiftedY - 1) * scale),
+                    (int) ((shiftedX + damageRect.width() + 1) * scale),
+                    (int) ((shiftedY + damageRect.height() + 1) * scale));
         }
     };
 
+    /**
+     * Schedules flushDamageCallback. Choreographer has to be used from the UI thread.
+     */
+    private final Runnable scheduleDamageFlush = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(flushDamageCallback);
+        }
+    };
 
     /**
      * Causes a redraw of the myDrawable to happen at the indicated coordinates.
+     * Damage is accumulated and invalidated on the next display frame.
      */
     public void reDraw(int x, int y, int w, int h) {
         //android.util.Log.i(TAG, "reDraw called: " + x +", " + y + " + " + w + "x" + h);
-        long timeNow = System.currentTimeMillis();
-        if (timeNow - lastDraw > 16.6666) {
-            float scale = getZoomFactor();
-            float shiftedX = x - shiftX;
-            float shiftedY = y - shiftY;
-            // Make the box slightly larger to avoid artifacts due to truncation errors.
-            postInvalidate((int) ((shiftedX - 1) * scale), (int) ((shiftedY - 1) * scale),
-                    (int) ((shiftedX + w + 1) * scale), (int) ((shiftedY + h + 1) * scale));
-            lastDraw = timeNow;
-        } else {
-            handler.removeCallbacks(invalidateCanvasRunnable);
-            handler.postDelayed(invalidateCanvasRunnable, 100);
+        // Without a handler the damage could not be flushed, and would keep later damage from
+        // scheduling a flush.
+        Handler flushHandler = handler;
+        if (flushHandler == null) {
+            return;
+        }
+        if (damage.add(x, y, w, h)) {
+            flushHandler.post(scheduleDamageFlush);
         }
     }
 
@@ -1644,19 +1813,9 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
      * Causes a redraw of the myDrawable to happen at the indicated coordinates.
      */
     public void reDraw(float x, float y, float w, float h) {
-        long timeNow = System.currentTimeMillis();
-        if (timeNow - lastDraw > 16.6666) {
-            float scale = getZoomFactor();
-            float shiftedX = x - shiftX;
-            float shiftedY = y - shiftY;
-            // Make the box slightly larger to avoid artifacts due to truncation errors.
-            postInvalidate((int) ((shiftedX - 1.f) * scale), (int) ((shiftedY - 1.f) * scale),
-                    (int) ((shiftedX + w + 1.f) * scale), (int) ((shiftedY + h + 1.f) * scale));
-            lastDraw = timeNow;
-        } else {
-            handler.removeCallbacks(invalidateCanvasRunnable);
-            handler.postDelayed(invalidateCanvasRunnable, 100);
-        }
+        int left = (int) Math.floor(x);
+        int top = (int) Math.floor(y);
+        reDraw(left, top, (int) Math.ceil(x + w) - left, (int) Math.ceil(y + h) - top);
     }
 
     /**
@@ -2075,8 +2234,6 @@ public class RemoteCanvas extends android.support.v7.widget.AppCompatImageView
                     connection.setIdHash(sshConnection.getIdHash()); // could prompt based on algorithm
                     connection.setSshHostKey(sshConnection.getServerHostKey());
                     connection.save(getContext());
-                    sshConnection.terminateSSHTunnel();
-                    sshConnection = null;
                     synchronized (RemoteCanvas.this) {
                         RemoteCanvas.this.notify();
                     }
@@ -371,6 +371,13 @@ public class RemoteCanvasActivity extends AppCompatActivity implements OnKeyList
             
             if (connection.getSshPort() == 0)
                 connection.setSshPort(Constants.DEFAULT_SSH_PORT);
+
+            // For example: adb shell am start -n <package>/com.iiordanov.bVNC.RemoteCanvasActivity
+            //     --es replayFile /sdcard/Android/data/<package>/files/recordings/session-1.fbs --ez replayRealTime true
+            String replayFile = i.getStringExtra(Constants.replayFileExtra);
+            if (replayFile != null) {
+                canvas.setReplay(new File(replayFile), i.getBooleanExtra(Constants.replayRealTimeExtra, false));
+            }
         }
         canvas.initializeCanvas(connection, setModes);
     }
@@ -985,6 +992,12 @@ public class RemoteCanvasActivity extends AppCompatActivity implements OnKeyList
     @Override
     protected void onPause(){
         super.onPause();
+        if (canvas != null) {
+            SessionManager.get().leaveForeground(canvas);
+            // Updates in the background are throttled, which continuous updates would bypass.
+            if (canvas.rfb != null)
+                canvas.rfb.pauseContinuousUpdates();
+        }
         try {
             InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
             imm.hideSoftInputFromWindow(canvas.getWindowToken(), 0);
@@ -1001,6 +1014,11 @@ public class RemoteCanvasActivity extends AppCompatActivity implements OnKeyList
     protected void onResume(){
         super.onResume();
         Log.i(TAG, "onResume called.");
+        if (canvas != null) {
+            SessionManager.get().setForeground(canvas);
+            if (canvas.rfb != null)
+                canvas.rfb.resumeContinuousUpdates();
+        }
         try {
             canvas.postInvalidateDelayed(600);
         } catch (NullPointerException e) { }
@@ -24,10 +24,14 @@
 package com.iiordanov.bVNC;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import android.util.Log;
@@ -41,6 +45,7 @@ import com.iiordanov.freeaRDP.*;
 import com.iiordanov.aSPICE.*;
 import com.iiordanov.freeaSPICE.*;
 import com.iiordanov.CustomClientPackage.*;
+import com.trilead.ssh2.LocalStreamForwarder;
 import com.undatech.opaque.RfbConnectable;
 import com.undatech.remoteClientUi.*;
 
@@ -145,7 +150,9 @@ class RfbProto implements RfbConnectable {
             SetColourMapEntries = 1,
             Bell = 2,
             ServerCutText = 3,
-            TextChat = 11;
+            TextChat = 11,
+            EndOfContinuousUpdates = 150,
+            ServerFence = 248;
 
     // Client-to-server messages
     final static int
@@ -155,7 +162,9 @@ class RfbProto implements RfbConnectable {
             FramebufferUpdateRequest = 3,
             KeyboardEvent = 4,
             PointerEvent = 5,
-            ClientCutText = 6;
+            ClientCutText = 6,
+            EnableContinuousUpdates = 150,
+            ClientFence = 248;
 
     // Supported encodings and pseudo-encodings
     final static int
@@ -170,13 +179,13 @@ class RfbProto implements RfbConnectable {
 //            EncodingUltra = 9,
 //            EncodingUltra2 = 10,
             EncodingZRLE = 16,
-//            EncodingZYWRLE = 17,
+            EncodingZYWRLE = 17,
 //            EncodingXZ = 18,
 //            EncodingXZYW = 19,
-//            EncodingZstd = 25,
+            EncodingZstd = 25,
             EncodingTightZstd = 26,
-//            EncodingZstdHex = 27,
-//            EncodingZSTDRLE = 28,
+            EncodingZstdHex = 27,
+            EncodingZSTDRLE = 28,
 //            EncodingZSTDYWRLE = 29,
             EncodingCompressLevel0 = -256,
             EncodingQualityLevel0 = -32,
@@ -186,6 +195,8 @@ class RfbProto implements RfbConnectable {
             EncodingLastRect = -224,
             EncodingNewFBSize = -223,
             EncodingClientRedirect = -311,
+            EncodingFence = -312,
+            EncodingContinuousUpdates = -313,
             EncodingExtendedDesktopSize = -308;
 
     final static String
@@ -214,7 +225,10 @@ class RfbProto implements RfbConnectable {
             HextileBackgroundSpecified = 2,
             HextileForegroundSpecified = 4,
             HextileAnySubrects = 8,
-            HextileSubrectsColoured = 16;
+            HextileSubrectsColoured = 16,
+            // ZstdHex tiles compressed as raw pixels, or as plain Hextile data
+            HextileZlibRaw = 32,
+            HextileZlibHex = 64;
 
     // Contstants used in the Tight decoder
     final static int TightMinToCompress = 12;
@@ -233,9 +247,26 @@ class RfbProto implements RfbConnectable {
             CHAT_CLOSE = -2,
             CHAT_FINISHED = -3;
 
+    // Fence flags
+    final static int
+            FenceFlagBlockBefore = 1,
+            FenceFlagBlockAfter = 2,
+            FenceFlagSyncNext = 4,
+            FenceFlagRequest = 0x80000000;
+
+    // How often the round trip time is measured with a fence, in milliseconds.
+    final static int FenceInterval = 1000;
+
+    // Socket buffers, set before connecting so that the TCP window can grow to use them.
+    final static int SocketReceiveBufferSize = 1024 * 1024;
+    final static int SocketSendBufferSize = 256 * 1024;
+
     String host;
     int port;
     Socket sock;
+    // When set, the connection is made over a channel of this SSH connection instead of a socket.
+    SSHConnection sshTunnel;
+    LocalStreamForwarder sshChannel;
     DataInputStream is;
     OutputStream os;
 
@@ -290,6 +321,46 @@ class RfbProto implements RfbConnectable {
     // If true, informs that the RFB socket was closed.
     private boolean closed;
 
+    // If true, a separate thread reads from the socket while the protocol loop decodes.
+    private boolean pipelinedReceive = false;
+    private PipelinedInputStream pipelinedInputStream;
+
+    // Session recording and playback.
+    private File recordingFile;
+    private SessionRecorder sessionRecorder;
+    private File replayFile;
+    private boolean replayRealTime;
+
+    // The pixel format last requested from the server, as it appears in a ServerInit message.
+    private byte[] clientPixelFormat = new byte[16];
+
+    // If true, the encoding and its quality settings follow the measured throughput.
+    private boolean adaptiveEncoding = false;
+    private EncodingController encodingController;
+    private CountingInputStream countingInputStream;
+    // Counts what is read off the socket, which is below the pipeline when it is used.
+    private CountingInputStream linkInputStream;
+
+    // If above zero, input events are batched and sent at most this many milliseconds late.
+    private int inputBatchingLatency = 0;
+    private volatile InputOutbox inputOutbox;
+
+    // If true, the server is asked to send updates as the screen changes instead of waiting
+    // for a request after each one. The area is what the server was last asked to cover.
+    private boolean continuousUpdates = false;
+    private boolean continuousUpdatesSupported = false;
+    private boolean continuousUpdatesActive = false;
+    private boolean pixelFormatChangePending = false;
+    // Set while continuous updates are being stopped because the session left the foreground.
+    private boolean continuousUpdatesPausing = false;
+    private int continuousX, continuousY, continuousW, continuousH;
+
+    // Fences are answered as soon as they are read, and used to measure the round trip time.
+    private boolean fenceSupported = false;
+    private boolean fencePending = false;
+    private long lastFenceSent = 0;
+    private volatile long roundTripTime = -1;
+
     // The main processing loop continues while this is set to true;
     private boolean maintainConnection = true;
 
@@ -355,10 +426,45 @@ class RfbProto implements RfbConnectable {
         timedKbits = 0;
     }
 
+    /**
+     * Connects a socket to host and port, with larger buffers than the default and no delay.
+     * Used for plain connections and as the transport of TLS tunnels.
+     */
+    static Socket connectSocket(String host, int port) throws IOException {
+        Socket sock = new Socket();
+        sock.setReceiveBufferSize(SocketReceiveBufferSize);
+        sock.setSendBufferSize(SocketSendBufferSize);
+        sock.setTcpNoDelay(true);
+        sock.connect(new InetSocketAddress(host, port));
+        return sock;
+    }
+
     // Make TCP connection to RFB server.
     private void initSocket() throws Exception {
         Socket sock = null;
 
+        if (replayFile != null) {
+            // Play back a recorded session and throw away everything sent to the "server".
+            setStreams(new SessionPlayer(replayFile, replayRealTime), new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+            return;
+        }
+
+        if (sshTunnel != null) {
+            // Read and write the SSH channel directly rather than through a local port forward.
+            Log.i(TAG, "Opening SSH channel to " + host + ":" + port);
+            sshChannel = sshTunnel.createStreamForward(host, port);
+            setStreams(sshChannel.getInputStream(), sshChannel.getOutputStream());
+            return;
+        }
+
         if (sslTunneled) {
             // If this is a tunneled connection, set up the tunnel and get its socket.
             Log.i(TAG, "Creating secure tunnel.");
@@ -378,8 +484,7 @@ class RfbProto implements RfbConnectable {
 
 
         if (sock == null) {
-            sock = new Socket(host, port);
-            sock.setTcpNoDelay(true);
+            sock = connectSocket(host, port);
         }
 
         this.sock = sock;
@@ -389,9 +494,25 @@ class RfbProto implements RfbConnectable {
     public synchronized void closeSocket() {
         inNormalProtocol = false;
         try {
+            if (inputOutbox != null) {
+                inputOutbox.stop();
+                inputOutbox = null;
+            }
+            if (sessionRecorder != null) {
+                sessionRecorder.stopRecording();
+                sessionRecorder = null;
+            }
+            if (pipelinedInputStream != null) {
+                pipelinedInputStream.close();
+                pipelinedInputStream = null;
+            }
             if (sock != null) {
                 sock.close();
             }
+            if (sshChannel != null) {
+                sshChannel.close();
+                sshChannel = null;
+            }
             closed = true;
             Log.v(TAG, "RFB socket closed");
         } catch (Exception e) {
@@ -419,6 +540,97 @@ class RfbProto implements RfbConnectable {
         return closed;
     }
 
+    void setPipelinedReceive(boolean pipelinedReceive) {
+        this.pipelinedReceive = pipelinedReceive;
+    }
+
+    /**
+     * Records everything the server sends after authentication to the given file.
+     */
+    void setRecordingFile(File recordingFile) {
+        this.recordingFile = recordingFile;
+    }
+
+    /**
+     * Plays back a recorded session instead of connecting to a server.
+     * @param replayFile session file written by SessionRecorder
+     * @param realTime whether to keep the recorded timing or play back as fast as possible
+     */
+    void setReplayFile(File replayFile, boolean realTime) {
+        this.replayFile = replayFile;
+        this.replayRealTime = realTime;
+    }
+
+    /**
+     * Connects over a channel of the given authenticated SSH connection, with the streams of the
+     * channel read and written directly, instead of through a socket to a local port forward.
+     * TLS security types need a socket and cannot be used this way.
+     */
+    void setSshTunnel(SSHConnection sshTunnel) {
+        this.sshTunnel = sshTunnel;
+    }
+
+    boolean isReplaying() {
+        return replayFile != null;
+    }
+
+    /**
+     * Lets the preferred encoding, compression level and JPEG quality follow the measured
+     * throughput and decoding cost instead of staying fixed.
+     */
+    void setAdaptiveEncoding(boolean adaptiveEncoding) {
+        this.adaptiveEncoding = adaptiveEncoding;
+    }
+
+    /**
+     * Sends key and pointer events in batches instead of one by one.
+     * @param latency the longest an event may be held back in milliseconds, 0 to send events immediately
+     */
+    void setInputBatchingLatency(int latency) {
+        this.inputBatchingLatency = latency;
+    }
+
+    /**
+     * Asks servers that support it to send updates without waiting for a request after each
+     * one. Servers that do not support it keep being sent requests.
+     */
+    void setContinuousUpdates(boolean continuousUpdates) {
+        this.continuousUpdates = continuousUpdates;
+    }
+
+    /**
+     * @return the number of bytes received from the server since the protocol started
+     */
+    synchronized long getBytesReceived() {
+        return countingInputStream != null ? countingInputStream.getCount() : 0;
+    }
+
+    /**
+     * @return the time the pipelined reader has spent unable to read the socket because the
+     * protocol loop was behind, in nanoseconds
+     */
+    private long getLinkStalledNanos() {
+        PipelinedInputStream pipeline = pipelinedInputStream;
+        return pipeline != null ? pipeline.getStalledNanos() : 0;
+    }
+
+    /**
+     * @return the throughput of the link measured over large updates in kbit/s, or -1 if there
+     * were none
+     */
+    long getLinkKbps() {
+        EncodingController controller = encodingController;
+        return controller != null ? Math.round(controller.getKbps()) : -1;
+    }
+
+    /**
+     * @return the last round trip time measured with a fence in milliseconds, or -1 if the
+     * server does not support fences
+     */
+    long getRoundTripTime() {
+        return roundTripTime;
+    }
+
     void initializeAndAuthenticate(String host, int port, String us, String pw,
                                    boolean useRepeater, String repeaterID, int connType,
                                    String cert) throws Exception {
@@ -428,7 +640,7 @@ class RfbProto implements RfbConnectable {
         initSocket();
 
         // <RepeaterMagic>
-        if (useRepeater && repeaterID != null && repeaterID.length() > 0) {
+        if (replayFile == null && useRepeater && repeaterID != null && repeaterID.length() > 0) {
             Log.i(TAG, "Negotiating repeater/proxy connection");
             byte[] protocolMsg = new byte[12];
             is.read(protocolMsg);
@@ -790,15 +1002,24 @@ class RfbProto implements RfbConnectable {
     }
 
     void authenticateTLS() throws Exception {
+        checkTlsSocket();
         TLSTunnel tunnel = new TLSTunnel(sock);
         tunnel.setup(this);
     }
 
     void authenticateX509(String certstr) throws Exception {
+        checkTlsSocket();
         X509Tunnel tunnel = new X509Tunnel(sock, certstr, canvas.handler, this);
         tunnel.setup(this);
     }
 
+    private void checkTlsSocket() throws Exception {
+        if (sock == null) {
+            throw new Exception("TLS security is not supported over a direct SSH channel," +
+                    " turn off the direct SSH channel setting to use it");
+        }
+    }
+
     void authenticatePlain(String User, String Password) throws Exception {
         byte[] user = User.getBytes();
         byte[] password = Password.getBytes();
@@ -1122,6 +1343,24 @@ class RfbProto implements RfbConnectable {
   }
   */
 
+    /**
+     * Builds the RFB 3.3 handshake without authentication that starts a session recording,
+     * describing the desktop as it is now and in the pixel format the client asked for.
+     */
+    private byte[] recordingHandshake() throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(b);
+        d.writeBytes(versionMsg_3_3);
+        d.writeInt(SecTypeNone);
+        d.writeShort(framebufferWidth);
+        d.writeShort(framebufferHeight);
+        d.write(clientPixelFormat);
+        byte[] name = (desktopName == null ? "" : desktopName).getBytes();
+        d.writeInt(name.length);
+        d.write(name);
+        return b.toByteArray();
+    }
+
     //
     // Set new framebuffer size
     //
@@ -1338,6 +1577,52 @@ class RfbProto implements RfbConnectable {
     }
 
 
+    //
+    // Write an EnableContinuousUpdates message
+    //
+
+    synchronized void writeEnableContinuousUpdates(boolean enable, int x, int y, int w, int h) {
+        byte[] b = new byte[10];
+
+        b[0] = (byte) EnableContinuousUpdates;
+        b[1] = (byte) (enable ? 1 : 0);
+        b[2] = (byte) ((x >> 8) & 0xff);
+        b[3] = (byte) (x & 0xff);
+        b[4] = (byte) ((y >> 8) & 0xff);
+        b[5] = (byte) (y & 0xff);
+        b[6] = (byte) ((w >> 8) & 0xff);
+        b[7] = (byte) (w & 0xff);
+        b[8] = (byte) ((h >> 8) & 0xff);
+        b[9] = (byte) (h & 0xff);
+
+        try {
+            os.write(b);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write enable continuous updates message.");
+            e.printStackTrace();
+        }
+    }
+
+
+    //
+    // Write a ClientFence message
+    //
+
+    synchronized void writeClientFence(int flags, byte[] data, int len) throws IOException {
+        byte[] b = new byte[9 + len];
+
+        b[0] = (byte) ClientFence;
+        b[4] = (byte) ((flags >> 24) & 0xff);
+        b[5] = (byte) ((flags >> 16) & 0xff);
+        b[6] = (byte) ((flags >> 8) & 0xff);
+        b[7] = (byte) (flags & 0xff);
+        b[8] = (byte) len;
+        System.arraycopy(data, 0, b, 9, len);
+
+        os.write(b);
+    }
+
+
     //
     // Write a SetPixelFormat message
     //
@@ -1363,6 +1648,7 @@ class RfbProto implements RfbConnectable {
         b[15] = (byte) greenShift;
         b[16] = (byte) blueShift;
         b[17] = (byte) (fGreyScale ? 1 : 0); // sf@2005
+        System.arraycopy(b, 4, clientPixelFormat, 0, clientPixelFormat.length);
 
         try {
             os.write(b);
@@ -1492,13 +1778,25 @@ class RfbProto implements RfbConnectable {
         }
 
         try {
-            os.write(eventBuf, 0, eventBufLen);
+            sendEventBuf();
         } catch (IOException e) {
             Log.e(TAG, "Failed to write pointer event to VNC server.");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Sends the events in eventBuf, or queues them if input events are batched.
+     */
+    private void sendEventBuf() throws IOException {
+        InputOutbox outbox = inputOutbox;
+        if (outbox != null) {
+            outbox.add(eventBuf, eventBufLen);
+        } else {
+            os.write(eventBuf, 0, eventBufLen);
+        }
+    }
+
     void writeCtrlAltDel() throws IOException {
         final int DELETE = 0xffff;
         final int CTRLALT = RemoteKeyboard.CTRL_MASK | RemoteKeyboard.ALT_MASK;
@@ -1507,7 +1805,7 @@ class RfbProto implements RfbConnectable {
             eventBufLen = 0;
             writeModifierKeyEvents(CTRLALT);
             writeKeyEvent(DELETE, true);
-            os.write(eventBuf, 0, eventBufLen);
+            sendEventBuf();
 
             // Release
             eventBufLen = 0;
@@ -1516,7 +1814,7 @@ class RfbProto implements RfbConnectable {
 
             // Reset VNC server modifiers state
             writeModifierKeyEvents(0);
-            os.write(eventBuf, 0, eventBufLen);
+            sendEventBuf();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1543,7 +1841,7 @@ class RfbProto implements RfbConnectable {
         }
 
         try {
-            os.write(eventBuf, 0, eventBufLen);
+            sendEventBuf();
         } catch (IOException e) {
             Log.e(TAG, "Failed to write key event to VNC server.");
             e.printStackTrace();
@@ -1667,32 +1965,8 @@ class RfbProto implements RfbConnectable {
     }
 
     public void readFully(byte b[], int off, int len) throws IOException {
-        // TODO: Try reenabling timing and set color according to bandwidth
-    /*
-    long before = 0;
-    timing = false; // for test
-
-    if (timing)
-      before = System.currentTimeMillis();
-     */
-
+        // Throughput for choosing encodings is measured per update, see EncodingController.
         is.readFully(b, off, len);
-
-    /*
-    if (timing) {
-      long after = System.currentTimeMillis();
-      long newTimeWaited = (after - before) * 10;
-      int newKbits = len * 8 / 1000;
-
-      // limit rate to between 10kbit/s and 40Mbit/s
-
-      if (newTimeWaited > newKbits*1000) newTimeWaited = newKbits*1000;
-      if (newTimeWaited < newKbits/4)    newTimeWaited = newKbits/4;
-
-      timeWaitedIn100us += newTimeWaited;
-      timedKbits += newKbits;
-    }
-    */
     }
 
     final int available() throws IOException {
@@ -1848,6 +2122,13 @@ class RfbProto implements RfbConnectable {
         return this.inNormalProtocol;
     }
 
+    /**
+     * @return the JPEG quality level most recently sent to the server
+     */
+    int getJpegQuality() {
+        return jpegQuality;
+    }
+
     public String getEncoding() {
         switch (preferredEncoding) {
             case RfbProto.EncodingRaw:
@@ -1866,6 +2147,8 @@ class RfbProto implements RfbConnectable {
                 return "ZLIB";
             case RfbProto.EncodingZRLE:
                 return "ZRLE";
+            case RfbProto.EncodingZYWRLE:
+                return "ZYWRLE";
         }
         return "";
     }
@@ -1874,13 +2157,20 @@ class RfbProto implements RfbConnectable {
         if (!inNormalProtocol)
             return;
 
-        int[] encodings = new int[20];
+        int[] encodings = new int[24];
         int nEncodings = 0;
 
         encodings[nEncodings++] = preferredEncoding;
         encodings[nEncodings++] = RfbProto.EncodingTight;
+        // Servers use the first encoding they support, so the zstd ones come before
+        // their zlib counterparts and are only picked by servers that have them.
+        // ZYWRLE is lossy like Tight, and comes before the lossless ZRLE family.
+        encodings[nEncodings++] = RfbProto.EncodingZYWRLE;
+        encodings[nEncodings++] = RfbProto.EncodingZSTDRLE;
         encodings[nEncodings++] = RfbProto.EncodingZRLE;
+        encodings[nEncodings++] = RfbProto.EncodingZstdHex;
         encodings[nEncodings++] = RfbProto.EncodingHextile;
+        encodings[nEncodings++] = RfbProto.EncodingZstd;
         encodings[nEncodings++] = RfbProto.EncodingZlib;
         encodings[nEncodings++] = RfbProto.EncodingCoRRE;
         encodings[nEncodings++] = RfbProto.EncodingRRE;
@@ -1898,6 +2188,11 @@ class RfbProto implements RfbConnectable {
         encodings[nEncodings++] = RfbProto.EncodingNewFBSize;
         encodings[nEncodings++] = RfbProto.EncodingExtendedDesktopSize;
 
+        if (continuousUpdates) {
+            encodings[nEncodings++] = RfbProto.EncodingContinuousUpdates;
+            encodings[nEncodings++] = RfbProto.EncodingFence;
+        }
+
         // TODO: Disabling ClientRedirect encoding for now because of
         // it being reserved for CursorWithAlpha by RealVNC and for
         // ClientRedirect by IANA. This can be reenabled once the
@@ -1933,6 +2228,58 @@ class RfbProto implements RfbConnectable {
         int msgType = 0;
 
         try {
+            // Authentication and any tunnel handshakes are over, so from here on the socket
+            // can be drained by a separate thread while rectangles are being decoded.
+            if (pipelinedReceive) {
+                Log.i(TAG, "Using pipelined receive");
+                synchronized (this) {
+                    linkInputStream = new CountingInputStream(is);
+                    pipelinedInputStream = new PipelinedInputStream(linkInputStream);
+                    pipelinedInputStream.start();
+                    is = new DataInputStream(pipelinedInputStream);
+                }
+            }
+
+            if (recordingFile != null && replayFile == null) {
+                try {
+                    synchronized (this) {
+                        sessionRecorder = new SessionRecorder(is, recordingFile, recordingHandshake());
+                        is = new DataInputStream(sessionRecorder);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not start recording session to " + recordingFile);
+                    e.printStackTrace();
+                }
+            }
+
+            // Throughput is measured for the transport statistics even when the encoding does
+            // not adapt to it.
+            synchronized (this) {
+                countingInputStream = new CountingInputStream(is);
+                is = new DataInputStream(countingInputStream);
+                if (linkInputStream == null) {
+                    linkInputStream = countingInputStream;
+                }
+            }
+            encodingController = new EncodingController(preferredEncoding, compressLevel, jpegQuality);
+            if (adaptiveEncoding) {
+                Log.i(TAG, "Using adaptive encoding");
+            }
+
+            if (inputBatchingLatency > 0) {
+                Log.i(TAG, "Batching input events, latency " + inputBatchingLatency + " ms");
+                InputOutbox outbox = new InputOutbox(new InputOutbox.Sink() {
+                    @Override
+                    public void send(byte[] b, int len) throws IOException {
+                        synchronized (RfbProto.this) {
+                            os.write(b, 0, len);
+                        }
+                    }
+                }, inputBatchingLatency);
+                outbox.start();
+                inputOutbox = outbox;
+            }
+
             setEncodings();
             canvas.writeFullUpdateRequest(false);
 
@@ -1952,65 +2299,63 @@ class RfbProto implements RfbConnectable {
                 // Process the message depending on its type.
                 switch (msgType) {
                     case RfbProto.FramebufferUpdate:
+                        if (encodingController != null)
+                            encodingController.startUpdate(linkInputStream.getCount(),
+                                    linkInputStream.getReadNanos(), getLinkStalledNanos());
                         readFramebufferUpdate();
 
                         for (int i = 0; i < updateNRects; i++) {
                             readFramebufferUpdateRectHdr();
+                            long rectStart = encodingController != null ? System.nanoTime() : 0;
+                            long rectReadNanos = countingInputStream != null ? countingInputStream.getReadNanos() : 0;
 
+                            // Tight rectangles may still be decoding on other threads, the rest of
+                            // the encodings and a framebuffer resize expect them to be done.
                             switch (updateRectEncoding) {
                                 case RfbProto.EncodingTight:
-                                    decoder.handleTightRect(this, updateRectX, updateRectY, updateRectW, updateRectH, false);
-                                    break;
                                 case RfbProto.EncodingTightZstd:
-                                    decoder.handleTightRect(this, updateRectX, updateRectY, updateRectW, updateRectH, true);
-                                    break;
                                 case RfbProto.EncodingPointerPos:
-                                    canvas.softCursorMove(updateRectX, updateRectY);
-                                    break;
                                 case RfbProto.EncodingXCursor:
                                 case RfbProto.EncodingRichCursor:
-                                    decoder.handleCursorShapeUpdate(this, updateRectEncoding, updateRectX, updateRectY,
-                                            updateRectW, updateRectH);
-                                    break;
-                                case RfbProto.EncodingLastRect:
-                                    exitforloop = true;
-                                    break;
-                                case RfbProto.EncodingCopyRect:
-                                    decoder.handleCopyRect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                                    break;
-                                case RfbProto.EncodingNewFBSize:
-                                    setFramebufferSize(updateRectW, updateRectH);
-                                    canvas.updateFBSize();
-                                    exitforloop = true;
-                                    break;
-                                case RfbProto.EncodingRaw:
-                                    decoder.handleRawRect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                                    break;
-                                case RfbProto.EncodingRRE:
-                                    decoder.handleRRERect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                                    break;
-                                case RfbProto.EncodingCoRRE:
-                                    decoder.handleCoRRERect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                                    break;
-                                case RfbProto.EncodingHextile:
-                                    decoder.handleHextileRect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                                    break;
-                                case RfbProto.EncodingZRLE:
-                                    decoder.handleZRLERect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                                    break;
-                                case RfbProto.EncodingZlib:
-                                    decoder.handleZlibRect(this, updateRectX, updateRectY, updateRectW, updateRectH);
-                                    break;
-                                case RfbProto.EncodingClientRedirect:
-                                    readClientRedirect(updateRectX, updateRectY, updateRectW, updateRectH);
-                                    break;
-                                case RfbProto.EncodingExtendedDesktopSize:
-                                    Log.d(TAG, "EncodingExtendedDesktopSize, wxh: " + updateRectW + "x" + updateRectH);
-                                    handleExtendedDesktopSize();
                                     break;
                                 default:
-                                    Log.e(TAG, "Unknown RFB rectangle encoding " + updateRectEncoding +
-                                            " (0x" + Integer.toHexString(updateRectEncoding) + ")");
+                                    decoder.waitForTightRects();
+                            }
+
+                            // Pixel data goes to the decoder registered for the encoding, the rest
+                            // of the pseudo-encodings change the state of the protocol.
+                            if (!decoder.decodeRect(this, updateRectEncoding, updateRectX, updateRectY,
+                                    updateRectW, updateRectH)) {
+                                switch (updateRectEncoding) {
+                                    case RfbProto.EncodingPointerPos:
+                                        canvas.softCursorMove(updateRectX, updateRectY);
+                                        break;
+                                    case RfbProto.EncodingLastRect:
+                                        exitforloop = true;
+                                        break;
+                                    case RfbProto.EncodingNewFBSize:
+                                        setFramebufferSize(updateRectW, updateRectH);
+                                        canvas.updateFBSize();
+                                        exitforloop = true;
+                                        break;
+                                    case RfbProto.EncodingClientRedirect:
+                                        readClientRedirect(updateRectX, updateRectY, updateRectW, updateRectH);
+                                        break;
+                                    case RfbProto.EncodingExtendedDesktopSize:
+                                        Log.d(TAG, "EncodingExtendedDesktopSize, wxh: " + updateRectW + "x" + updateRectH);
+                                        handleExtendedDesktopSize();
+                                        break;
+                                    default:
+                                        Log.e(TAG, "Unknown RFB rectangle encoding " + updateRectEncoding +
+                                                " (0x" + Integer.toHexString(updateRectEncoding) + ")");
+                                }
+                            }
+
+                            if (encodingController != null) {
+                                // Waiting for the data of the rectangle is not part of decoding it.
+                                long readNanos = countingInputStream.getReadNanos() - rectReadNanos;
+                                encodingController.rectDecoded(updateRectEncoding, updateRectW, updateRectH,
+                                        Math.max(0, System.nanoTime() - rectStart - readNanos));
                             }
 
                             if (exitforloop) {
@@ -2018,15 +2363,50 @@ class RfbProto implements RfbConnectable {
                                 break;
                             }
                         }
+                        decoder.waitForTightRects();
+
+                        if (encodingController != null &&
+                                encodingController.endUpdate(linkInputStream.getCount(),
+                                        linkInputStream.getReadNanos(), getLinkStalledNanos()) &&
+                                adaptiveEncoding) {
+                            preferredEncoding = encodingController.getEncoding();
+                            compressLevel = encodingController.getCompressLevel();
+                            jpegQuality = encodingController.getJpegQuality();
+                            Log.i(TAG, "Adapting encodings: " + encodingController);
+                            setEncodings();
+                        }
 
                         if (decoder.isChangedColorModel()) {
-                            decoder.setPixelFormat(this);
-                            //setEncodings();
-                            canvas.writeFullUpdateRequest(false);
+                            if (!stopContinuousUpdatesForFormatChange()) {
+                                decoder.setPixelFormat(this);
+                                //setEncodings();
+                                canvas.writeFullUpdateRequest(false);
+                            }
                         } else {
                             //setEncodings();
+                            // Sessions in the background ask for updates less often. The server
+                            // does not wait to be asked with continuous updates.
+                            boolean requested;
+                            synchronized (this) {
+                                requested = !continuousUpdatesActive;
+                            }
+                            if (requested)
+                                SessionManager.get().awaitUpdateTurn(canvas);
                             canvas.writeFullUpdateRequest(true);
                         }
+
+                        if (fenceSupported && !fencePending && replayFile == null &&
+                                System.currentTimeMillis() - lastFenceSent >= FenceInterval) {
+                            sendRoundTripFence();
+                        }
+                        break;
+
+                    case RfbProto.EndOfContinuousUpdates:
+                        handleEndOfContinuousUpdates();
+                        break;
+
+                    case RfbProto.ServerFence:
+                        handleServerFence();
                         break;
 
                     case RfbProto.SetColourMapEntries:
@@ -2067,6 +2447,167 @@ class RfbProto implements RfbConnectable {
         closeSocket();
     }
 
+    /**
+     * Lets continuous updates cover the given area instead of requesting an update for it.
+     * @param incremental whether the update that would otherwise be requested is incremental
+     * @return true if no update request needs to be sent
+     */
+    synchronized boolean continueUpdates(int x, int y, int w, int h, boolean incremental) {
+        if (!continuousUpdatesActive) {
+            return false;
+        }
+        if (pixelFormatChangePending || continuousUpdatesPausing) {
+            // An update is requested once the server confirms the stop.
+            return true;
+        }
+        if (x != continuousX || y != continuousY || w != continuousW || h != continuousH) {
+            writeEnableContinuousUpdates(true, x, y, w, h);
+            continuousX = x;
+            continuousY = y;
+            continuousW = w;
+            continuousH = h;
+        }
+        return incremental;
+    }
+
+    /**
+     * Stops continuous updates while the session is in the background, so its updates are
+     * requested, and throttled, one at a time. Requests start when the server confirms the stop.
+     */
+    synchronized void pauseContinuousUpdates() {
+        if (!continuousUpdatesActive || pixelFormatChangePending || continuousUpdatesPausing) {
+            return;
+        }
+        continuousUpdatesPausing = true;
+        writeEnableContinuousUpdates(false, 0, 0, 0, 0);
+    }
+
+    /**
+     * Turns continuous updates back on for the area they last covered when the session
+     * returns to the foreground.
+     */
+    synchronized void resumeContinuousUpdates() {
+        if (!continuousUpdatesSupported || !continuousUpdates) {
+            return;
+        }
+        if (continuousUpdatesPausing) {
+            continuousUpdatesPausing = false;
+        } else if (continuousUpdatesActive) {
+            return;
+        }
+        continuousUpdatesActive = true;
+        if (continuousW > 0 && continuousH > 0) {
+            writeEnableContinuousUpdates(true, continuousX, continuousY, continuousW, continuousH);
+        }
+    }
+
+    /**
+     * Updates that are already on their way are in the old pixel format, so continuous updates
+     * are stopped and the format is only switched when the server confirms the stop.
+     * @return false if continuous updates are not in use and the format can be switched now
+     */
+    private synchronized boolean stopContinuousUpdatesForFormatChange() {
+        if (!continuousUpdatesActive) {
+            return false;
+        }
+        if (!pixelFormatChangePending) {
+            pixelFormatChangePending = true;
+            writeEnableContinuousUpdates(false, 0, 0, 0, 0);
+        }
+        return true;
+    }
+
+    /**
+     * The server sends EndOfContinuousUpdates once to show it supports the extension, and
+     * again whenever continuous updates have been stopped at the client's request.
+     */
+    private void handleEndOfContinuousUpdates() throws IOException {
+        if (!continuousUpdatesSupported) {
+            Log.i(TAG, "Using continuous updates");
+            continuousUpdatesSupported = true;
+            synchronized (this) {
+                continuousUpdatesActive = true;
+                continuousW = continuousH = 0;
+            }
+            canvas.writeFullUpdateRequest(true);
+            return;
+        }
+
+        if (pixelFormatChangePending) {
+            decoder.setPixelFormat(this);
+            synchronized (this) {
+                pixelFormatChangePending = false;
+                continuousW = continuousH = 0;
+            }
+            canvas.writeFullUpdateRequest(false);
+            return;
+        }
+
+        boolean paused;
+        synchronized (this) {
+            paused = continuousUpdatesPausing;
+            if (paused) {
+                continuousUpdatesPausing = false;
+                continuousUpdatesActive = false;
+            }
+        }
+        if (paused) {
+            SessionManager.get().awaitUpdateTurn(canvas);
+            canvas.writeFullUpdateRequest(true);
+        }
+    }
+
+    /**
+     * Answers fence requests right away. Messages are handled one at a time and in order, so
+     * replying immediately honours the block flags. SyncNext is never echoed, since the reply
+     * is not held back until the following message has been handled. Replies to our own fences
+     * carry the time they were sent.
+     */
+    private void handleServerFence() throws IOException {
+        byte[] padding = new byte[3];
+        readFully(padding);
+        int flags = is.readInt();
+        int len = is.readUnsignedByte();
+        if (len > 64) {
+            throw new IOException("Fence payload too long: " + len);
+        }
+        byte[] data = new byte[len];
+        readFully(data);
+
+        if (!fenceSupported) {
+            Log.i(TAG, "Server supports fences");
+            fenceSupported = true;
+        }
+
+        if ((flags & FenceFlagRequest) != 0) {
+            writeClientFence(flags & (FenceFlagBlockBefore | FenceFlagBlockAfter), data, len);
+        } else if (fencePending && len == 8) {
+            long sent = 0;
+            for (int i = 0; i < 8; i++) {
+                sent = sent << 8 | (data[i] & 0xff);
+            }
+            roundTripTime = (System.nanoTime() - sent) / 1000000;
+            fencePending = false;
+            Log.v(TAG, "Round trip time: " + roundTripTime + " ms");
+        }
+    }
+
+    /**
+     * Sends a fence carrying the current time, which the server echoes back once it has
+     * handled every message sent before it.
+     */
+    private void sendRoundTripFence() throws IOException {
+        long now = System.nanoTime();
+        byte[] data = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            data[i] = (byte) (now & 0xff);
+            now >>= 8;
+        }
+        writeClientFence(FenceFlagRequest | FenceFlagBlockBefore, data, data.length);
+        fencePending = true;
+        lastFenceSent = System.currentTimeMillis();
+    }
+
     /**
      * This method handles the pseudo encoding ExtendedDesktopSize enabling a remote resizing of the vnc session
      * Protocol: https://github.com/rfbproto/rfbproto/blob/master/rfbproto.rst#extendeddesktopsize-pseudo-encoding
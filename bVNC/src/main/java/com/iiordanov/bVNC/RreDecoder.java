@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ * Copyright (C) 2010 Michael A. MacDonald
+ * Copyright (C) 2004 Horizon Wimba.  All Rights Reserved.
+ * Copyright (C) 2001-2003 HorizonLive.com, Inc.  All Rights Reserved.
+ * Copyright (C) 2001,2002 Constantin Kaplinsky.  All Rights Reserved.
+ * Copyright (C) 2000 Tridia Corporation.  All Rights Reserved.
+ * Copyright (C) 1999 AT&T Laboratories Cambridge.  All Rights Reserved.
+ * 
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.IOException;
+
+/**
+ * Decodes RRE and CoRRE rectangles: a background color followed by solid subrectangles.
+ * CoRRE is RRE with one byte per subrectangle coordinate instead of two.
+ */
+class RreDecoder implements EncodingDecoder {
+    private final Decoder decoder;
+    private final boolean compact;
+    private byte[] bgBuf  = new byte[4];
+    private byte[] rreBuf = new byte[128];
+
+    /**
+     * @param compact true to decode CoRRE rather than RRE
+     */
+    RreDecoder(Decoder decoder, boolean compact) {
+        this.decoder = decoder;
+        this.compact = compact;
+    }
+
+    @Override
+    public void decode(RfbProto rfb, int x, int y, int w, int h) throws IOException {
+        AbstractBitmapData bitmapData = decoder.bitmapData;
+        PixelConverter converter = decoder.pixelConverter;
+        final int bytesPerPixel = converter.bytesPerPixel;
+        boolean valid = bitmapData.validDraw(x, y, w, h);
+        int nSubrects = rfb.is.readInt();
+
+        rfb.readFully(bgBuf, 0, bytesPerPixel);
+        int pixel = converter.pixel(bgBuf, 0);
+        if ( valid)
+            bitmapData.fillPixels(x, y, w, h, pixel);
+
+        int len = nSubrects * (bytesPerPixel + (compact ? 4 : 8));
+        if (len > rreBuf.length)
+            rreBuf = new byte[len];
+        byte[] buf = rreBuf;
+
+        rfb.readFully(buf, 0, len);
+        if ( ! valid)
+            return;
+
+        int sx, sy, sw, sh;
+        int i = 0;
+
+        for (int j = 0; j < nSubrects; j++) {
+            pixel = converter.pixel(buf, i);
+            i += bytesPerPixel;
+            if (compact) {
+                sx = x + (buf[i++] & 0xFF);
+                sy = y + (buf[i++] & 0xFF);
+                sw = buf[i++] & 0xFF;
+                sh = buf[i++] & 0xFF;
+            } else {
+                sx = x + ((buf[i] & 0xff) << 8) + (buf[i+1] & 0xff); i+=2;
+                sy = y + ((buf[i] & 0xff) << 8) + (buf[i+1] & 0xff); i+=2;
+                sw = ((buf[i] & 0xff) << 8) + (buf[i+1] & 0xff); i+=2;
+                sh = ((buf[i] & 0xff) << 8) + (buf[i+1] & 0xff); i+=2;
+            }
+
+            Decoder.fillSubrect(bitmapData, x, y, w, h, sx, sy, sw, sh, pixel);
+        }
+
+        bitmapData.updateBitmap(x, y, w, h);
+        decoder.vncCanvas.reDraw(x, y, w, h);
+    }
+}
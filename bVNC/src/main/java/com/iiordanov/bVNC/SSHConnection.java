@@ -23,24 +23,33 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.iiordanov.pubkeygenerator.PubkeyUtils;
+import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.ConnectionInfo;
 import com.trilead.ssh2.InteractiveCallback;
 import com.trilead.ssh2.KnownHosts;
+import com.trilead.ssh2.LocalPortForwarder;
+import com.trilead.ssh2.LocalStreamForwarder;
 import com.trilead.ssh2.Session;
 import com.iiordanov.bVNC.dialogs.GetTextFragment;
 import com.undatech.opaque.MessageDialogs;
@@ -54,6 +63,10 @@ import com.undatech.remoteClientUi.*;
 public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFragmentDismissedListener {
     private final static String TAG = "SSHConnection";
     private final static int MAXTRIES = 3;
+    // How long starting x11vnc with AutoX may take in all, in milliseconds.
+    private final static long AUTO_X_TIMEOUT = 60000;
+    private final static Pattern PORT_PATTERN = Pattern.compile("PORT=(\\d+)\\D");
+    private final static Pattern FINAL_PORT_PATTERN = Pattern.compile("PORT=(\\d+)");
     private final static int MAX_AUTH_RETRIES = 3;
     private final static int MAX_DECRYPTION_ATTEMPTS = 3;
 
@@ -62,6 +75,7 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
     private ConnectionInfo connectionInfo;
     private String serverHostKey;
     private Session session;
+    private final List<LocalPortForwarder> portForwarders = new ArrayList<LocalPortForwarder>();
     private boolean passwordAuth = false;
     private boolean keyboardInteractiveAuth = false;
     private boolean pubKeyAuth = false;
@@ -90,6 +104,7 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
     private BufferedInputStream remoteStdout;
     private BufferedInputStream remoteStderr;
     private BufferedOutputStream remoteStdin;
+    private String remoteErrors = "";
     private boolean autoXEnabled;
     private int     autoXType;
     private String  autoXCommand;
@@ -100,6 +115,7 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
     private int sshPasswordAuthAttempts = 0;
     private int sshKeyDecryptionAttempts = 0;
     private com.undatech.opaque.Connection conn;
+    private boolean compression = false;
 
     // Used to communicate the MFA verification code obtained.
     private String verificationCode;
@@ -216,15 +232,100 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
     public int initializeSSHTunnel () throws Exception {
         int port = -1;
         
-        // Attempt to connect.
-        if (!connect())
-            throw new Exception(context.getString(R.string.error_ssh_unable_to_connect));
-        
-        // Verify host key against saved one.
-        if (!verifyHostKey())
-            throw new Exception(context.getString(R.string.error_ssh_hostkey_changed));
+        // The host key may have been saved since this was created.
+        savedServerHostKey = conn.getSshHostKey();
+        savedIdHash = conn.getIdHash();
+
+        // Use an authenticated connection to the same server and user if one is open.
+        String poolKey = SshConnectionPool.key(host, sshPort, user, compression,
+                SshTransportProfile.getCiphers(context), SshTransportProfile.getMacs(context),
+                credentials());
+        Connection pooled = SshConnectionPool.acquire(poolKey);
+        if (pooled != null) {
+            // The connection opened to fetch the host key is not needed any more.
+            if (connectionInfo != null && connection != pooled) {
+                connection.close();
+            }
+            connection = pooled;
+            connectionInfo = connection.getConnectionInfo();
+            serverHostKey = Base64.encodeToString(connectionInfo.serverHostKey, Base64.DEFAULT);
+            if (!verifyHostKey())
+                throw new Exception(context.getString(R.string.error_ssh_hostkey_changed));
+        } else {
+            // Attempt to connect, unless already connected to fetch the host key.
+            if (connectionInfo == null && !connect())
+                throw new Exception(context.getString(R.string.error_ssh_unable_to_connect));
+
+            // Verify host key against saved one.
+            if (!verifyHostKey())
+                throw new Exception(context.getString(R.string.error_ssh_hostkey_changed));
+
+            authenticate();
+            SshConnectionPool.add(poolKey, connection);
+        }
+
+        // Run a remote command if commanded to.
+        if (autoXEnabled) {
+            long start = SystemClock.elapsedRealtime();
+            long deadline = start + AUTO_X_TIMEOUT;
+            int tries = 0;
+            while (port < 0 && tries < MAXTRIES && SystemClock.elapsedRealtime() < deadline) {
+                long attemptStart = SystemClock.elapsedRealtime();
+                // If we're not using unix credentials, protect access with a temporary password file.
+                if (!autoXUnixpw) {
+                    writeStringToRemoteCommand(vncpassword, Constants.AUTO_X_CREATE_PASSWDFILE+
+                                                            Constants.AUTO_X_PWFILEBASENAME+autoXRandFileNm+
+                                                            Constants.AUTO_X_SYNC, deadline);
+                    Log.i(TAG, "AutoX password file written in " +
+                            (SystemClock.elapsedRealtime() - attemptStart) + "ms");
+                }
+                // Execute AutoX command.
+                long commandStart = SystemClock.elapsedRealtime();
+                execRemoteCommand(autoXCommand);
+                
+                // If we are looking for the greeter, we give the password to sudo's stdin.
+                if (autoXType == Constants.AUTOX_SELECT_SUDO_FIND)
+                    writeStringToStdin (password+"\n");
+                
+                // Watch the output of the command for PORT= as it arrives.
+                port = awaitRemotePort(deadline);
+                tries++;
+                Log.i(TAG, "AutoX attempt " + tries + (port < 0 ? " failed" : " found port " + port) +
+                        " after " + (SystemClock.elapsedRealtime() - commandStart) + "ms");
+                if (port < 0) {
+                    // Give x11vnc the chance to exit before trying again.
+                    session.close();
+                    long remaining = deadline - SystemClock.elapsedRealtime();
+                    if (remaining > 0) {
+                        session.waitForCondition(ChannelCondition.CLOSED, remaining);
+                    }
+                }
+            }
+            Log.i(TAG, "AutoX took " + (SystemClock.elapsedRealtime() - start) + "ms in total");
+
+            if (port < 0) {
+                throw new Exception (context.getString(R.string.error_ssh_x11vnc_no_port_failure)
+                        + "  \n\n" + context.getString(R.string.error) + ":  \n\n"
+                        + remoteErrors);
+            }
+        }
         
-        // Authenticate and set up port forwarding.
+        return port;
+    }
+    
+    /**
+     * @return the credentials of the profile, which a pooled connection has to have been
+     * authenticated with to be reused
+     */
+    private String credentials () {
+        return (usePubKey ? sshPrivKey : "") + "\n" + password;
+    }
+
+    /**
+     * Authenticates with whichever of password and key the server and the settings call for.
+     * @throws Exception
+     */
+    private void authenticate () throws Exception {
         if (!usePubKey) {
             Log.i(TAG, "SSH tunnel not configured to use public key, trying password auth");
             if (!canAuthWithPass()) {
@@ -282,45 +383,8 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
                 }
             }
         }
-
-        // Run a remote command if commanded to.
-        if (autoXEnabled) {
-            int tries = 0;
-            while (port < 0 && tries < MAXTRIES) {
-                // If we're not using unix credentials, protect access with a temporary password file.
-                if (!autoXUnixpw) {
-                    writeStringToRemoteCommand(vncpassword, Constants.AUTO_X_CREATE_PASSWDFILE+
-                                                            Constants.AUTO_X_PWFILEBASENAME+autoXRandFileNm+
-                                                            Constants.AUTO_X_SYNC);
-                }
-                // Execute AutoX command.
-                execRemoteCommand(autoXCommand, 1);
-                
-                // If we are looking for the greeter, we give the password to sudo's stdin.
-                if (autoXType == Constants.AUTOX_SELECT_SUDO_FIND)
-                    writeStringToStdin (password+"\n");
-                
-                // Try to find PORT=
-                port = parseRemoteStdoutForPort();
-                if (port < 0) {
-                    session.close();
-                    tries++;
-                    // Wait a little for x11vnc to recover.
-                    if (tries < MAXTRIES)
-                        try { Thread.sleep(tries*3500); } catch (InterruptedException e1) { }
-                }
-            }
-
-            if (port < 0) {
-                throw new Exception (context.getString(R.string.error_ssh_x11vnc_no_port_failure)
-                        + "  \n\n" + context.getString(R.string.error) + ":  \n\n"
-                        + bufferedInputStreamToString(remoteStderr));
-            }
-        }
-        
-        return port;
     }
-    
+
     /**
      * Creates a port forward to the given port and returns the local port forwarded.
      * @return the local port forwarded to the given remote port
@@ -339,6 +403,22 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
         return localForwardedPort;
     }
 
+    /**
+     * Opens a channel to the given remote host and port, without listening on a local port.
+     * Whatever is written to and read from the streams of the channel goes straight to the remote port.
+     * @return the channel forwarded to the given remote port
+     * @throws Exception
+     */
+    LocalStreamForwarder createStreamForward (String remoteHost, int port) throws Exception {
+        // At this point we know we are authenticated.
+        try {
+            return connection.createLocalStreamForwarder(remoteHost, port);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new Exception(context.getString(R.string.error_ssh_port_forwarding_failure));
+        }
+    }
+
     
     /**
      * Connects to remote server.
@@ -347,7 +427,13 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
     public boolean connect() {
             
         try {
-            connection.setCompression(false);
+            connection.setCompression(compression);
+            String[] ciphers = SshTransportProfile.getCiphers(context);
+            connection.setClient2ServerCiphers(ciphers);
+            connection.setServer2ClientCiphers(ciphers);
+            String[] macs = SshTransportProfile.getMacs(context);
+            connection.setClient2ServerMACs(macs);
+            connection.setServer2ClientMACs(macs);
 
             // TODO: Try using the provided KeyVerifier instead of verifying keys myself.
             connectionInfo = connection.connect(null, 6000, 24000);
@@ -364,6 +450,30 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
         }
     }
 
+    /**
+     * Sets whether to ask the server to compress the connection. Has to be called before connect().
+     */
+    void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    boolean isCompressed() {
+        return compression;
+    }
+
+    /**
+     * Describes the ciphers and MACs the connection uses, and whether it is compressed.
+     */
+    String describeTransport() {
+        if (connectionInfo == null) {
+            return "not connected";
+        }
+        return connectionInfo.clientToServerCryptoAlgorithm + "/" + connectionInfo.clientToServerMACAlgorithm +
+                " out, " + connectionInfo.serverToClientCryptoAlgorithm + "/" +
+                connectionInfo.serverToClientMACAlgorithm + " in, " +
+                (compression ? "compressed" : "uncompressed");
+    }
+
     /**
      * Return a string holding a Hex representation of the signature of the remote host's key.
      */
@@ -373,10 +483,23 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
     }
 
     /**
-     * Disconnects from remote server.
+     * Stops the port forwards and remote command of this tunnel, and gives the connection back
+     * to the pool, which disconnects from the remote server once no tunnel has used it for a while.
      */
     public void terminateSSHTunnel () {
-        connection.close();
+        for (LocalPortForwarder forwarder : portForwarders) {
+            try {
+                forwarder.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        portForwarders.clear();
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        SshConnectionPool.release(connection);
     }
 
     private boolean verifyHostKey () {
@@ -502,8 +625,8 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
         int portsTried = 0;
         while (portsTried < numPortTries) {
             try {
-                connection.createLocalPortForwarder(new InetSocketAddress("127.0.0.1", localPortStart + portsTried),
-                                                    remoteHost, remotePort);
+                portForwarders.add(connection.createLocalPortForwarder(
+                        new InetSocketAddress("127.0.0.1", localPortStart + portsTried), remoteHost, remotePort));
                 return localPortStart + portsTried;
             } catch (IOException e) {
                 portsTried++;
@@ -513,12 +636,11 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
     }
 
     /**
-     * Executes a remote command, and waits a certain amount of time.
+     * Executes a remote command, without waiting for it to produce anything.
      * @param command - the command to execute.
-     * @param secTimeout - amount of time in seconds to wait afterward.
      * @throws Exception
      */
-    private void execRemoteCommand (String command, int secTimeout) throws Exception {
+    private void execRemoteCommand (String command) throws Exception {
         Log.i (TAG, "Executing remote command: " + command);
 
         try {
@@ -527,7 +649,6 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
             remoteStdout = new BufferedInputStream(session.getStdout());
             remoteStderr = new BufferedInputStream(session.getStderr());
             remoteStdin  = new BufferedOutputStream(session.getStdin());
-            Thread.sleep(secTimeout*1000);
         } catch (Exception e) {
             e.printStackTrace();
             throw new Exception (context.getString(R.string.error_ssh_could_not_exec_command)
@@ -537,15 +658,20 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
     }
     
     /**
-     * Writes the specified string to a stdin of a remote command.
+     * Writes the specified string to a stdin of a remote command, and waits until the command
+     * exits or the deadline passes.
      * @throws Exception
      */
-    private void writeStringToRemoteCommand (String s, String cmd) throws Exception {
+    private void writeStringToRemoteCommand (String s, String cmd, long deadline) throws Exception {
         Log.i(TAG, "Writing string to stdin of remote command: " + cmd);
-        execRemoteCommand(cmd, 0);
+        execRemoteCommand(cmd);
         remoteStdin.write(s.getBytes());
         remoteStdin.flush();
         remoteStdin.close();
+        long remaining = deadline - SystemClock.elapsedRealtime();
+        if (remaining > 0) {
+            session.waitForCondition(ChannelCondition.EXIT_STATUS | ChannelCondition.CLOSED, remaining);
+        }
         session.close();
     }
     
@@ -574,51 +700,66 @@ public class SSHConnection implements InteractiveCallback, GetTextFragment.OnFra
     }
 
     /**
-     * Parses the remote stdout for PORT=
+     * Reads the stdout and stderr of the remote command as they arrive, until PORT= followed by
+     * the port shows up on stdout, the command ends its output or the deadline passes. What
+     * arrived on stderr is kept in remoteErrors.
+     * @return the port, or -1 if it was not found
      */
-    private int parseRemoteStdoutForPort () {
-        Log.i (TAG, "Parsing remote stdout for PORT=");
+    private int awaitRemotePort (long deadline) {
+        Log.i (TAG, "Waiting for PORT= in remote stdout");
 
-        String sought = "PORT=";
-        int soughtLength = sought.length();
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        byte[] buffer = new byte[1024];
         int port = -1;
         try {
-            int data = 0;
-            int i = 0;
-            while (data != -1 && i < soughtLength) {
-                data = remoteStdout.read();
-                if (data == (int)sought.charAt(i)) {
-                    i = i + 1;
-                } else {
-                    i = 0;
+            while (port < 0) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    Log.e (TAG, "Timed out waiting for PORT= in remote stdout.");
+                    break;
+                }
+                int conditions = session.waitForCondition(ChannelCondition.STDOUT_DATA |
+                        ChannelCondition.STDERR_DATA | ChannelCondition.EOF, remaining);
+                boolean data = readAvailable(remoteStderr, err, buffer);
+                data |= readAvailable(remoteStdout, out, buffer);
+                boolean ended = !data && (conditions & ChannelCondition.EOF) != 0;
+                // The port is only complete once something follows it, or the output ended.
+                Matcher m = (ended ? FINAL_PORT_PATTERN : PORT_PATTERN).matcher(out);
+                if (m.find()) {
+                    port = Integer.parseInt(m.group(1));
+                    Log.i (TAG, "Found PORT=, set to: " + port);
+                } else if (ended) {
+                    Log.e (TAG, "Failed to find PORT= in remote stdout.");
+                    break;
                 }
-            }
-
-            if (i == soughtLength) {
-                // Read in 5 bytes after PORT=
-                byte[] buffer = new byte[5];
-                remoteStdout.read(buffer);
-                // Get rid of any whitespace (e.g. if the port is less than 5 digits).
-                buffer = new String(buffer).replaceAll("\\s","").getBytes();
-                port = Integer.parseInt(new String(buffer));
-                Log.i (TAG, "Found PORT=, set to: " + port);
-            } else {
-                Log.e (TAG, "Failed to find PORT= in remote stdout.");
-                port = -1;
             }
         } catch (IOException e) {
             Log.e (TAG, "Failed to read from remote stdout.");
             e.printStackTrace();
-            port = -1;
         } catch (NumberFormatException e) {
             Log.e (TAG, "Failed to parse integer.");
             e.printStackTrace();
-            port = -1;
         }
 
+        remoteErrors = err.toString();
         return port;
     }
 
+    /**
+     * Appends to sb what can be read from in without blocking.
+     * @return true if anything was read
+     */
+    private static boolean readAvailable (InputStream in, StringBuilder sb, byte[] buffer) throws IOException {
+        boolean read = false;
+        int n;
+        while (in.available() > 0 && (n = in.read(buffer)) > 0) {
+            sb.append(new String(buffer, 0, n));
+            read = true;
+        }
+        return read;
+    }
+
     String bufferedInputStreamToString(BufferedInputStream remote) {
         int nRead;
         byte[] dataBuf = new byte[1024];
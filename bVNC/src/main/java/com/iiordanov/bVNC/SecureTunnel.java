@@ -26,11 +26,8 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Locale;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 import android.os.Handler;
@@ -68,14 +65,9 @@ public class SecureTunnel implements X509TrustManager
 	public void setup() throws Exception
 	{
 		// create socket
-		Socket sock = new Socket(m_address, m_port);
-		sock.setTcpNoDelay(true);
-		// create secure tunnel
-		Log.i(TAG, "Generating TLS context.");	
-		SSLContext sc = SSLContext.getInstance("TLS");	
-		sc.init(null, new TrustManager[] {this} , null);
-		SSLSocketFactory sslfactory = sc.getSocketFactory();
-		m_sslsock = (SSLSocket) sslfactory.createSocket(sock, sock.getInetAddress().getHostName(), sock.getPort(), true);
+		Socket sock = RfbProto.connectSocket(m_address, m_port);
+		// create secure tunnel, sharing the TLS context with earlier tunnels to resume their session
+		m_sslsock = TlsContextCache.createSocket("SecureTunnel", sock, m_address, m_port);
 
 	    m_sslsock.setTcpNoDelay(true);
 	    // this can hang without a timeout
@@ -83,7 +75,7 @@ public class SecureTunnel implements X509TrustManager
 	    setParam(m_sslsock);
 	    
 		Log.i(TAG, "Performing TLS handshake.");
-	    m_sslsock.startHandshake();
+	    TlsContextCache.startHandshake(m_sslsock, this);
 	    Log.i(TAG, "Secure tunnel established.");
 	    
 	    SSLSession session = m_sslsock.getSession();
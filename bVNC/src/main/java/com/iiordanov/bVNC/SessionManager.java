@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps track of the sessions open in this process, so that several can stay connected at once
+ * without each acting as if it had the device to itself. Decoding threads are shared through
+ * DecoderPool, the memory for framebuffers is divided between the sessions here, and sessions
+ * that are not in the foreground ask the server for updates only now and then.
+ */
+class SessionManager {
+    private static final String TAG = "SessionManager";
+
+    // Sessions in the background ask for an update at most this often.
+    static final long BACKGROUND_UPDATE_INTERVAL = 1000;
+    // However many sessions there are, each may use at least this share of the memory.
+    static final int MIN_MEMORY_SHARE = 8;
+
+    private static final SessionManager instance = new SessionManager();
+
+    private static class Session {
+        // Memory held by the framebuffer of the session, in megabytes.
+        int reservedMemory;
+        long lastUpdateRequest;
+    }
+
+    private final HashMap<RemoteCanvas, Session> sessions = new HashMap<RemoteCanvas, Session>();
+    private RemoteCanvas foreground;
+
+    static SessionManager get() {
+        return instance;
+    }
+
+    /**
+     * Adds a session that is connecting.
+     */
+    synchronized void register(RemoteCanvas canvas) {
+        if (!sessions.containsKey(canvas)) {
+            sessions.put(canvas, new Session());
+            Log.i(TAG, sessions.size() + " sessions open");
+        }
+    }
+
+    /**
+     * Removes a session that is closed, giving back its memory.
+     */
+    synchronized void unregister(RemoteCanvas canvas) {
+        if (sessions.remove(canvas) != null) {
+            Log.i(TAG, sessions.size() + " sessions open");
+        }
+        if (foreground == canvas)
+            foreground = null;
+        notifyAll();
+    }
+
+    /**
+     * Called when the session is shown to the user.
+     */
+    synchronized void setForeground(RemoteCanvas canvas) {
+        foreground = canvas;
+        // A session that was waiting to ask for an update can do so now.
+        notifyAll();
+    }
+
+    /**
+     * Called when the session is no longer shown to the user.
+     */
+    synchronized void leaveForeground(RemoteCanvas canvas) {
+        if (foreground == canvas)
+            foreground = null;
+    }
+
+    /**
+     * @param capacity the memory the process may use, in megabytes
+     * @return the memory the framebuffer of a session may use, in megabytes, which is what the
+     * other open sessions have left over
+     */
+    synchronized int memoryBudget(RemoteCanvas canvas, int capacity) {
+        int reserved = 0;
+        for (Map.Entry<RemoteCanvas, Session> e : sessions.entrySet()) {
+            if (e.getKey() != canvas)
+                reserved += e.getValue().reservedMemory;
+        }
+        return Math.max(capacity - reserved, capacity / MIN_MEMORY_SHARE);
+    }
+
+    /**
+     * Records how much memory the framebuffer of a session uses, in megabytes.
+     */
+    synchronized void reserveMemory(RemoteCanvas canvas, int megabytes) {
+        Session session = sessions.get(canvas);
+        if (session != null)
+            session.reservedMemory = megabytes;
+    }
+
+    /**
+     * Called before a session asks for an update. Returns at once for the session in the
+     * foreground, and otherwise waits until BACKGROUND_UPDATE_INTERVAL has passed since the
+     * last update it asked for, the session comes to the foreground or it is closed.
+     */
+    synchronized void awaitUpdateTurn(RemoteCanvas canvas) {
+        Session session = sessions.get(canvas);
+        if (session == null)
+            return;
+        try {
+            while (canvas != foreground && sessions.get(canvas) == session) {
+                long wait = session.lastUpdateRequest + BACKGROUND_UPDATE_INTERVAL - SystemClock.elapsedRealtime();
+                if (wait <= 0)
+                    break;
+                wait(wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        session.lastUpdateRequest = SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import android.util.Log;
+
+/**
+ * Plays back a session file written by SessionRecorder as if it were coming from a server.
+ * In real time mode each block is held back until its timestamp, otherwise the data is
+ * delivered as fast as it is read, which makes playback a throughput test of the decoders.
+ */
+class SessionPlayer extends InputStream {
+    private final static String TAG = "SessionPlayer";
+
+    private final DataInputStream in;
+    private final boolean realTime;
+    private byte[] block = new byte[SessionRecorder.MAX_BLOCK_SIZE];
+    private int blockLength = 0;
+    private int position = 0;
+    private boolean ended = false;
+
+    private long startTime = -1;
+    private long bytesPlayed = 0;
+
+    SessionPlayer(File file, boolean realTime) throws IOException {
+        this.realTime = realTime;
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), SessionRecorder.MAX_BLOCK_SIZE));
+        byte[] version = new byte[SessionRecorder.FBS_VERSION.length()];
+        in.readFully(version);
+        if (!SessionRecorder.FBS_VERSION.equals(new String(version, "US-ASCII"))) {
+            in.close();
+            throw new IOException("Not a session recording: " + file);
+        }
+        Log.i(TAG, "Playing back " + file + (realTime ? " in real time" : " as fast as possible"));
+    }
+
+    /**
+     * Reads the next block, waiting for its timestamp in real time mode.
+     * @return false at the end of the recording
+     */
+    private boolean nextBlock() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            Log.i(TAG, "Played back " + bytesPlayed + " bytes in " + elapsed + " ms, " +
+                    (bytesPlayed * 1000 / elapsed / 1024) + " KiB/s");
+            ended = true;
+            return false;
+        }
+        if (length < 0) {
+            throw new IOException("Corrupt session recording, block length " + length);
+        }
+        if (length > block.length) {
+            block = new byte[length];
+        }
+        in.readFully(block, 0, length);
+        in.skipBytes((4 - (length & 3)) & 3);
+        long timestamp = in.readInt() & 0xFFFFFFFFL;
+
+        long now = System.currentTimeMillis();
+        if (startTime < 0) {
+            startTime = now - timestamp;
+        }
+        if (realTime && startTime + timestamp > now) {
+            try {
+                Thread.sleep(startTime + timestamp - now);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted during playback");
+            }
+        }
+
+        blockLength = length;
+        position = 0;
+        bytesPlayed += length;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (position >= blockLength) {
+            if (ended || !nextBlock()) {
+                return -1;
+            }
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position >= blockLength) {
+            if (ended || !nextBlock()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, blockLength - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return blockLength - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
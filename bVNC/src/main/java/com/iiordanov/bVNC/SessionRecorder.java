@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/**
+ * Copies everything the server sends into a session file while it is being read.
+ *
+ * The file uses the FBS 001.000 format of the TightVNC recorder and rfbproxy: a version line
+ * followed by blocks of [length, data padded to four bytes, milliseconds since the start].
+ * The first block is an RFB 3.3 handshake without authentication that describes the desktop
+ * as it was when recording started, so a recording can be played back through the normal
+ * connection code. Bytes read within BLOCK_INTERVAL_MS of each other share a block.
+ */
+class SessionRecorder extends FilterInputStream {
+    private final static String TAG = "SessionRecorder";
+
+    static final String FBS_VERSION = "FBS 001.000\n";
+    static final int BLOCK_INTERVAL_MS = 10;
+    static final int MAX_BLOCK_SIZE = 65536;
+
+    private DataOutputStream out;
+    private final long startTime;
+    private final byte[] pending = new byte[MAX_BLOCK_SIZE];
+    private int pendingLength = 0;
+    private long pendingTime;
+    private final byte[] skipBuffer = new byte[4096];
+    private long bytesRecorded = 0;
+
+    /**
+     * @param in stream of server messages, positioned at the start of the normal protocol
+     * @param file session file to create
+     * @param handshake bytes to play back before the recorded messages
+     */
+    SessionRecorder(InputStream in, File file, byte[] handshake) throws IOException {
+        super(in);
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), MAX_BLOCK_SIZE));
+        out.writeBytes(FBS_VERSION);
+        startTime = System.currentTimeMillis();
+        writeBlock(handshake, 0, handshake.length, 0);
+        Log.i(TAG, "Recording session to " + file);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            skipBuffer[0] = (byte) b;
+            record(skipBuffer, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            record(b, off, n);
+        }
+        return n;
+    }
+
+    /**
+     * Skipped bytes are still part of the session, so they are read rather than skipped.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        int r = read(skipBuffer, 0, (int) Math.min(n, skipBuffer.length));
+        return r < 0 ? 0 : r;
+    }
+
+    private synchronized void record(byte[] b, int off, int len) {
+        if (out == null) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            if (pendingLength > 0 && (now - pendingTime >= BLOCK_INTERVAL_MS || pendingLength + len > MAX_BLOCK_SIZE)) {
+                flushPending();
+            }
+            if (len > MAX_BLOCK_SIZE) {
+                writeBlock(b, off, len, now - startTime);
+                return;
+            }
+            if (pendingLength == 0) {
+                pendingTime = now;
+            }
+            System.arraycopy(b, off, pending, pendingLength, len);
+            pendingLength += len;
+        } catch (IOException e) {
+            // A full disk should not end the session, only the recording.
+            Log.e(TAG, "Could not write to session file, recording stopped");
+            e.printStackTrace();
+            closeQuietly();
+        }
+    }
+
+    private void flushPending() throws IOException {
+        writeBlock(pending, 0, pendingLength, pendingTime - startTime);
+        pendingLength = 0;
+    }
+
+    private void writeBlock(byte[] b, int off, int len, long timestamp) throws IOException {
+        out.writeInt(len);
+        out.write(b, off, len);
+        for (int i = len; (i & 3) != 0; i++) {
+            out.write(0);
+        }
+        out.writeInt((int) timestamp);
+        bytesRecorded += len;
+    }
+
+    /**
+     * Writes out anything pending and closes the session file. The underlying stream is left open.
+     */
+    synchronized void stopRecording() {
+        if (out == null) {
+            return;
+        }
+        try {
+            if (pendingLength > 0) {
+                flushPending();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Log.i(TAG, "Recorded " + bytesRecorded + " bytes in " + (System.currentTimeMillis() - startTime) + " ms");
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+}
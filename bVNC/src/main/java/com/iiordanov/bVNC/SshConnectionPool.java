@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import android.util.Log;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+import com.undatech.opaque.util.SslUtils;
+
+/**
+ * Keeps authenticated SSH connections open for the whole process, so that sessions to the
+ * same SSH server, user and settings open channels over one connection instead of connecting and
+ * authenticating each time. A connection stays open while a session uses it, and for
+ * IDLE_TIMEOUT after the last one is done with it, so that reconnecting is quick too.
+ */
+class SshConnectionPool {
+    private static final String TAG = "SshConnectionPool";
+
+    // How long a connection no session uses is kept open, in milliseconds.
+    static final long IDLE_TIMEOUT = 60000;
+
+    private static class Entry {
+        final Connection connection;
+        int references = 1;
+        TimerTask closeTask;
+
+        Entry(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private static Timer timer;
+
+    /**
+     * A connection is only shared by sessions that would have set it up the same way: with the
+     * same compression, ciphers and MACs, and authenticated with the same credentials. Only a
+     * digest of the credentials is kept in the key.
+     */
+    static String key(String host, int port, String user, boolean compression, String[] ciphers,
+                      String[] macs, String credentials) throws NoSuchAlgorithmException {
+        return user + "@" + host + ":" + port + (compression ? " compressed " : " ") +
+                Arrays.toString(ciphers) + " " + Arrays.toString(macs) + " " +
+                SslUtils.signature("SHA-256", credentials.getBytes());
+    }
+
+    /**
+     * Hands out the pooled connection for key, which has to be given back with release().
+     * @return the connection, or null if there is no authenticated connection for key
+     */
+    static synchronized Connection acquire(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.connection.isAuthenticationComplete()) {
+            entries.remove(key);
+            return null;
+        }
+        if (entry.closeTask != null) {
+            entry.closeTask.cancel();
+            entry.closeTask = null;
+        }
+        entry.references++;
+        Log.i(TAG, "Reusing SSH connection " + key + ", " + entry.references + " users");
+        return entry.connection;
+    }
+
+    /**
+     * Pools an authenticated connection for key, counting the caller as its first user. If
+     * another connection was pooled for key meanwhile, this one is left out, and is closed
+     * when it is released.
+     */
+    static synchronized void add(final String key, final Connection connection) {
+        if (entries.containsKey(key)) {
+            return;
+        }
+        entries.put(key, new Entry(connection));
+        connection.addConnectionMonitor(new ConnectionMonitor() {
+            @Override
+            public void connectionLost(Throwable reason) {
+                Log.i(TAG, "SSH connection " + key + " lost: " + reason);
+                remove(key, connection);
+            }
+        });
+    }
+
+    /**
+     * Gives back a connection. A pooled connection is closed once no session has used it for
+     * IDLE_TIMEOUT, any other connection is closed right away.
+     */
+    static synchronized void release(final Connection connection) {
+        for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+            final Entry entry = e.getValue();
+            if (entry.connection != connection) {
+                continue;
+            }
+            if (--entry.references == 0) {
+                if (timer == null) {
+                    timer = new Timer(TAG, true);
+                }
+                entry.closeTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        if (removeIdle(e.getKey(), entry)) {
+                            Log.i(TAG, "Closing idle SSH connection " + e.getKey());
+                            connection.close();
+                        }
+                    }
+                };
+                timer.schedule(entry.closeTask, IDLE_TIMEOUT);
+            }
+            return;
+        }
+        connection.close();
+    }
+
+    /**
+     * Takes entry out of the pool, if it is still the one pooled for key and no session took it
+     * back up meanwhile.
+     * @return true if it was taken out
+     */
+    private static synchronized boolean removeIdle(String key, Entry entry) {
+        if (entry.references > 0) {
+            return false;
+        }
+        return remove(key, entry.connection);
+    }
+
+    /**
+     * Takes connection out of the pool, if it is still the one pooled for key.
+     * @return true if it was taken out
+     */
+    private static synchronized boolean remove(String key, Connection connection) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.connection != connection) {
+            return false;
+        }
+        entries.remove(key);
+        return true;
+    }
+}
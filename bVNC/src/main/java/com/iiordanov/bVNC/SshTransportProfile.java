@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.trilead.ssh2.Connection;
+
+/**
+ * Picks the SSH transport settings that suit this device and link best. The ciphers and MACs
+ * of the SSH library are ranked once per device and the order is kept until the system or the
+ * library changes. The ranking is an estimate: the library's own cipher and MAC classes are not
+ * part of its API, so the platform's implementations of the same algorithms are timed instead.
+ * They tell whether the CPU has instructions for AES, which is what decides between AES and
+ * ChaCha20 on most devices.
+ *
+ * Compression is only worth its CPU for encodings that do not compress by themselves, over a
+ * link measured to be slow in a recent uncompressed session. Sessions with compression do not
+ * measure the link, since what arrives after inflating is more than went over the wire, so a
+ * measurement is only trusted for LINK_KBPS_MAX_AGE before an uncompressed session measures
+ * the link again.
+ */
+class SshTransportProfile {
+    private static final String TAG = "SshTransportProfile";
+
+    private static final String PREFS_NAME = "sshTransportProfile";
+    private static final String SIGNATURE_KEY = "signature";
+    private static final String CIPHERS_KEY = "ciphers";
+    private static final String MACS_KEY = "macs";
+    private static final String LINK_KBPS_KEY = "linkKbps:";
+    private static final String LINK_KBPS_TIME_KEY = "linkKbpsTime:";
+
+    // Below this throughput compressing uncompressed encodings pays for itself.
+    static final long SLOW_LINK_KBPS = 4000;
+
+    // How long a measurement of the link is used for, in milliseconds.
+    static final long LINK_KBPS_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    // The size of an SSH packet, and how many are processed per round of the benchmark.
+    private static final int PACKET_SIZE = 32768;
+    private static final int PACKETS_PER_ROUND = 8;
+    private static final int ROUNDS = 3;
+
+    // Platform algorithms the ciphers and MACs worth timing correspond to, with their key sizes.
+    // Weaker algorithms are not timed and are offered after these in the library's order.
+    private static final Map<String, String> CIPHER_ALGORITHMS = new HashMap<String, String>();
+    private static final Map<String, Integer> CIPHER_KEY_SIZES = new HashMap<String, Integer>();
+    private static final Map<String, String> MAC_ALGORITHMS = new HashMap<String, String>();
+    static {
+        addCipher("aes128-ctr", "AES/CTR/NoPadding", 16);
+        addCipher("aes192-ctr", "AES/CTR/NoPadding", 24);
+        addCipher("aes256-ctr", "AES/CTR/NoPadding", 32);
+        addCipher("aes128-gcm@openssh.com", "AES/GCM/NoPadding", 16);
+        addCipher("aes256-gcm@openssh.com", "AES/GCM/NoPadding", 32);
+        addCipher("chacha20-poly1305@openssh.com", "ChaCha20/Poly1305/NoPadding", 32);
+        MAC_ALGORITHMS.put("hmac-sha2-256-etm@openssh.com", "HmacSHA256");
+        MAC_ALGORITHMS.put("hmac-sha2-512-etm@openssh.com", "HmacSHA512");
+        MAC_ALGORITHMS.put("hmac-sha1-etm@openssh.com", "HmacSHA1");
+        MAC_ALGORITHMS.put("hmac-sha2-256", "HmacSHA256");
+        MAC_ALGORITHMS.put("hmac-sha2-512", "HmacSHA512");
+        MAC_ALGORITHMS.put("hmac-sha1", "HmacSHA1");
+    }
+
+    private static String[] ciphers;
+    private static String[] macs;
+
+    private static void addCipher(String name, String algorithm, int keySize) {
+        CIPHER_ALGORITHMS.put(name, algorithm);
+        CIPHER_KEY_SIZES.put(name, keySize);
+    }
+
+    /**
+     * @return the ciphers the SSH library supports, fastest first by the speed of the platform's
+     * implementations of them on this device
+     */
+    static synchronized String[] getCiphers(Context context) {
+        load(context);
+        return ciphers;
+    }
+
+    /**
+     * @return the MACs the SSH library supports, fastest first by the speed of the platform's
+     * implementations of them on this device
+     */
+    static synchronized String[] getMacs(Context context) {
+        load(context);
+        return macs;
+    }
+
+    /**
+     * Decides whether an SSH connection to host carrying VNC in the given encoding should be compressed.
+     */
+    static boolean useCompression(Context context, String host, int encoding) {
+        switch (encoding) {
+            case RfbProto.EncodingRaw:
+            case RfbProto.EncodingRRE:
+            case RfbProto.EncodingCoRRE:
+            case RfbProto.EncodingHextile:
+                SharedPreferences sp = prefs(context);
+                long kbps = sp.getLong(LINK_KBPS_KEY + host, -1);
+                long age = System.currentTimeMillis() - sp.getLong(LINK_KBPS_TIME_KEY + host, 0);
+                return kbps >= 0 && kbps < SLOW_LINK_KBPS && age < LINK_KBPS_MAX_AGE;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Remembers the throughput measured over a session to host, for deciding on compression the
+     * next time. Throughput measured over a compressed connection is not the link's, and is not kept.
+     */
+    static void recordLinkSpeed(Context context, String host, long kbps, boolean compressed) {
+        if (kbps >= 0 && !compressed) {
+            prefs(context).edit().putLong(LINK_KBPS_KEY + host, kbps)
+                    .putLong(LINK_KBPS_TIME_KEY + host, System.currentTimeMillis()).apply();
+        }
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Reads the order of the ciphers and MACs saved for this device, timing them again if the
+     * system or the algorithms of the SSH library changed since.
+     */
+    private static void load(Context context) {
+        if (ciphers != null) {
+            return;
+        }
+        String[] availableCiphers = Connection.getAvailableCiphers();
+        String[] availableMacs = Connection.getAvailableMACs();
+        String signature = Build.FINGERPRINT + ";" + TextUtils.join(",", availableCiphers) + ";" +
+                TextUtils.join(",", availableMacs);
+
+        SharedPreferences sp = prefs(context);
+        if (signature.equals(sp.getString(SIGNATURE_KEY, null))) {
+            ciphers = TextUtils.split(sp.getString(CIPHERS_KEY, ""), ",");
+            macs = TextUtils.split(sp.getString(MACS_KEY, ""), ",");
+            return;
+        }
+
+        long start = System.nanoTime();
+        Map<String, Double> macCosts = new HashMap<String, Double>();
+        double fastestMac = 0;
+        for (String mac : availableMacs) {
+            String algorithm = MAC_ALGORITHMS.get(mac);
+            if (algorithm != null) {
+                double cost = timeMac(algorithm);
+                if (cost > 0) {
+                    macCosts.put(mac, cost);
+                    fastestMac = fastestMac == 0 ? cost : Math.min(fastestMac, cost);
+                }
+            }
+        }
+        Map<String, Double> cipherCosts = new HashMap<String, Double>();
+        for (String cipher : availableCiphers) {
+            String algorithm = CIPHER_ALGORITHMS.get(cipher);
+            if (algorithm != null) {
+                double cost = timeCipher(algorithm, CIPHER_KEY_SIZES.get(cipher));
+                if (cost > 0) {
+                    // Ciphers other than the AEAD ones come with a MAC.
+                    cipherCosts.put(cipher, algorithm.contains("GCM") || algorithm.contains("Poly1305") ?
+                            cost : cost + fastestMac);
+                }
+            }
+        }
+        ciphers = fastestFirst(availableCiphers, cipherCosts);
+        macs = fastestFirst(availableMacs, macCosts);
+        Log.i(TAG, "Ranked SSH algorithms by platform speed in " + (System.nanoTime() - start) / 1000000 + "ms, ciphers: " +
+                cipherCosts + " ns/byte, MACs: " + macCosts + " ns/byte");
+
+        sp.edit().putString(SIGNATURE_KEY, signature)
+                .putString(CIPHERS_KEY, TextUtils.join(",", ciphers))
+                .putString(MACS_KEY, TextUtils.join(",", macs)).apply();
+    }
+
+    /**
+     * Orders names by their cost, keeping the ones that were not timed after them in the given order.
+     */
+    private static String[] fastestFirst(String[] names, final Map<String, Double> costs) {
+        List<String> timed = new ArrayList<String>();
+        List<String> rest = new ArrayList<String>();
+        for (String name : names) {
+            (costs.containsKey(name) ? timed : rest).add(name);
+        }
+        String[] result = timed.toArray(new String[names.length]);
+        Arrays.sort(result, 0, timed.size(), new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(costs.get(a), costs.get(b));
+            }
+        });
+        for (int i = 0; i < rest.size(); i++) {
+            result[timed.size() + i] = rest.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the time the cipher takes to encrypt a byte in nanoseconds, or 0 if it is not available
+     */
+    private static double timeCipher(String algorithm, int keySize) {
+        try {
+            Cipher cipher = Cipher.getInstance(algorithm);
+            SecretKeySpec key = new SecretKeySpec(new byte[keySize], algorithm.substring(0, algorithm.indexOf('/')));
+            byte[] packet = new byte[PACKET_SIZE];
+            byte[] output = new byte[PACKET_SIZE + 16];
+            byte[] iv = new byte[algorithm.startsWith("AES/CTR") ? 16 : 12];
+            long best = Long.MAX_VALUE;
+            // The first round warms up, and the fastest round is the one least disturbed.
+            for (int round = 0; round <= ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < PACKETS_PER_ROUND; i++) {
+                    // AEAD ciphers refuse to encrypt twice with the same nonce.
+                    iv[0]++;
+                    iv[1] = (byte) round;
+                    if (algorithm.startsWith("AES/GCM")) {
+                        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+                    } else {
+                        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+                    }
+                    cipher.doFinal(packet, 0, packet.length, output, 0);
+                }
+                if (round > 0) {
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+            }
+            return (double) best / (PACKET_SIZE * PACKETS_PER_ROUND);
+        } catch (Exception e) {
+            Log.d(TAG, algorithm + " could not be timed: " + e);
+            return 0;
+        }
+    }
+
+    /**
+     * @return the time the MAC takes to sign a byte in nanoseconds, or 0 if it is not available
+     */
+    private static double timeMac(String algorithm) {
+        try {
+            Mac mac = Mac.getInstance(algorithm);
+            mac.init(new SecretKeySpec(new byte[32], algorithm));
+            byte[] packet = new byte[PACKET_SIZE];
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round <= ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < PACKETS_PER_ROUND; i++) {
+                    mac.update(packet);
+                    mac.doFinal();
+                }
+                if (round > 0) {
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+            }
+            return (double) best / (PACKET_SIZE * PACKETS_PER_ROUND);
+        } catch (Exception e) {
+            Log.d(TAG, algorithm + " could not be timed: " + e);
+            return 0;
+        }
+    }
+}
@@ -22,9 +22,8 @@ package com.iiordanov.bVNC;
 
 import java.net.Socket;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.X509TrustManager;
 
 import android.util.Log;
 
@@ -36,23 +35,21 @@ public TLSTunnelBase (Socket sock_) {
     sock = sock_;
   }
 
-  protected void initContext (SSLContext sc) throws java.security.GeneralSecurityException {
-    sc.init (null, null, null);
+  /*
+   * Checks the certificate of the server, or returns null if the server has none.
+   */
+  protected X509TrustManager getTrustManager () throws java.security.GeneralSecurityException {
+    return null;
   }
 
   public void setup (RfbProto cc) throws Exception {
     try {
-      SSLSocketFactory sslfactory;
       SSLSocket sslsock;
-      SSLContext sc = SSLContext.getInstance ("TLS");
-      Log.i(TAG, "Generating TLS context");
-      initContext (sc);
       Log.i(TAG, "Doing TLS handshake");
-      sslfactory = sc.getSocketFactory ();
-      sslsock = (SSLSocket) sslfactory.createSocket (sock,
-						     sock.getInetAddress().
-						     getHostName(),
-						     sock.getPort(), true);
+      // The TLS context is shared with earlier tunnels to the server, to resume their session.
+      sslsock = TlsContextCache.createSocket (getClass().getSimpleName(), sock,
+                                              sock.getInetAddress().getHostName(),
+                                              sock.getPort());
 
       sslsock.setTcpNoDelay(true);
       sslsock.setSoTimeout(Constants.SOCKET_CONN_TIMEOUT);
@@ -61,10 +58,10 @@ public TLSTunnelBase (Socket sock_) {
 
       sslsock.setSoTimeout(0);
 
-      /* Not necessary - just ensures that we know what cipher
-       * suite we are using for the output of toString()
+      /* Done here rather than on first use, so that the certificate
+       * of a resumed session is checked before anything is sent.
        */
-      sslsock.startHandshake ();
+      TlsContextCache.startHandshake (sslsock, getTrustManager ());
 
       Log.i(TAG, "TLS done");
       
@@ -0,0 +1,489 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ * Copyright (C) 2010 Michael A. MacDonald
+ * Copyright (C) 2004 Horizon Wimba.  All Rights Reserved.
+ * Copyright (C) 2001-2003 HorizonLive.com, Inc.  All Rights Reserved.
+ * Copyright (C) 2001,2002 Constantin Kaplinsky.  All Rights Reserved.
+ * Copyright (C) 2000 Tridia Corporation.  All Rights Reserved.
+ * Copyright (C) 1999 AT&T Laboratories Cambridge.  All Rights Reserved.
+ * 
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+
+/**
+ * Decodes Tight rectangles, and TightZstd ones, which use zstd in place of zlib. A rectangle is
+ * a solid color, a JPEG image, or pixels that went through the copy, palette or gradient filter
+ * and one of four compression streams. When parallel decoding is on, compressed and JPEG
+ * rectangles are decoded by a TightScheduler on worker threads.
+ */
+class TightDecoder {
+    private final Decoder decoder;
+    private Inflater[] inflaters  = new Inflater[4];
+    private TightZstdInflater[] zstdInflaters = new TightZstdInflater[4];
+    private Paint paint = new Paint();
+    private byte[] solidColorBuf       = new byte[3];
+    private int[]  palette             = new int[256];
+    private byte[] colorBuf            = new byte[768];
+    private byte[] uncompDataBuf       = new byte[RfbProto.TightMinToCompress*3];
+    private byte[] zlibData            = new byte[4096];
+    private byte[] inflBuf             = new byte[8192];
+    private BitmapFactory.Options bitmapopts = new BitmapFactory.Options();
+    // Decodes Tight rectangles on worker threads when parallel decoding is enabled.
+    private TightScheduler scheduler;
+    // Buffers of rectangles decoded on worker threads, handed back once they are drawn.
+    private final BufferPool[] dataPools = new BufferPool[TightScheduler.STREAMS];
+    private final BufferPool[] inflatedPools = new BufferPool[TightScheduler.STREAMS];
+    private final BufferPool jpegPool = new BufferPool();
+    private final ArrayDeque<int[]> freePalettes = new ArrayDeque<int[]>();
+    // Rows of the gradient filter, for each thread that draws rectangles.
+    private final ThreadLocal<TightFilters.GradientRows> gradientRows =
+            new ThreadLocal<TightFilters.GradientRows>() {
+        @Override
+        protected TightFilters.GradientRows initialValue() {
+            return new TightFilters.GradientRows();
+        }
+    };
+
+    /**
+     * Buffers that only grow, so that after the first few rectangles no more are allocated.
+     * Only a few free buffers are kept, as a rectangle can take megabytes.
+     */
+    private static class BufferPool {
+        private static final int MAX_FREE = 4;
+        private final ArrayDeque<byte[]> free = new ArrayDeque<byte[]>();
+
+        synchronized byte[] obtain(int size) {
+            byte[] buf = free.poll();
+            if (buf == null || buf.length < size)
+                buf = new byte[size];
+            return buf;
+        }
+
+        synchronized void recycle(byte[] buf) {
+            if (free.size() < MAX_FREE)
+                free.push(buf);
+        }
+    }
+
+    TightDecoder(Decoder decoder) {
+        this.decoder = decoder;
+        for (int i = 0; i < TightScheduler.STREAMS; i++) {
+            dataPools[i] = new BufferPool();
+            inflatedPools[i] = new BufferPool();
+        }
+        paint.setStyle(Style.FILL);
+        bitmapopts.inPurgeable      = false;
+        bitmapopts.inDither         = false;
+        bitmapopts.inTempStorage    = new byte[32768];
+        bitmapopts.inPreferredConfig= Bitmap.Config.RGB_565;
+        bitmapopts.inScaled         = false;
+    }
+
+    /**
+     * @param zstd true for TightZstd rectangles
+     * @return the decoder for one of the two encodings, which share their state
+     */
+    EncodingDecoder forEncoding(final boolean zstd) {
+        return new EncodingDecoder() {
+            @Override
+            public void decode(RfbProto rfb, int x, int y, int w, int h) throws Exception {
+                TightDecoder.this.decode(rfb, x, y, w, h, zstd);
+            }
+        };
+    }
+
+    //
+    // Handle a Tight-encoded rectangle.
+    //
+    void decode(RfbProto rfb, int x, int y, int w, int h, boolean zstd) throws Exception {
+
+        AbstractBitmapData bitmapData = decoder.bitmapData;
+        RemoteCanvas vncCanvas = decoder.vncCanvas;
+        PixelConverter converter = decoder.pixelConverter;
+        boolean valid = bitmapData.validDraw(x, y, w, h);
+        int comp_ctl = rfb.is.readUnsignedByte();
+
+        // Compressed and JPEG rectangles are handed to worker threads if the bitmap can take it.
+        boolean parallel = decoder.parallelDecoding && bitmapData.allowsConcurrentUpdates();
+        if (parallel && scheduler == null) {
+            scheduler = new TightScheduler();
+        }
+
+        int rowSize = w;
+        int numColors = 0;
+        boolean useGradient = false;
+
+        // Flush zlib or zstd streams if we are told by the server to do so.
+        for (int stream_id = 0; stream_id < 4; stream_id++) {
+            if ((comp_ctl & 1) != 0) {
+                if (parallel) {
+                    // Earlier rectangles queued for the stream still need it.
+                    final int stream = stream_id;
+                    scheduler.submitToStream(stream, 0, 0, 0, 0, new TightScheduler.Work() {
+                        @Override
+                        public void decode() {
+                            resetStream(stream);
+                        }
+
+                        @Override
+                        public void apply() {
+                        }
+                    });
+                } else {
+                    resetStream(stream_id);
+                }
+            }
+            comp_ctl >>= 1;
+        }
+
+        // Check correctness of sub-encoding value.
+        if (comp_ctl > RfbProto.TightMaxSubencoding) {
+            throw new Exception("Incorrect tight subencoding: " + comp_ctl);
+        }
+
+        // Handle solid-color rectangles.
+        if (comp_ctl == RfbProto.TightFill) {
+            rfb.readFully(solidColorBuf, 0, converter.bytesPerTightPixel);
+            paint.setColor(converter.tightPixel(solidColorBuf, 0));
+            if (valid) {
+                if (parallel)
+                    scheduler.waitForOverlapping(x, y, w, h);
+                bitmapData.drawRect(x, y, w, h, paint);
+                vncCanvas.reDraw(x, y, w, h);
+            }
+            return;
+        }
+
+        if (comp_ctl == RfbProto.TightJpeg) {
+            // Read JPEG data.
+            int jpegDataLen = rfb.readCompactLen();
+            if (parallel) {
+                byte[] jpegData = jpegPool.obtain(jpegDataLen);
+                rfb.readFully(jpegData, 0, jpegDataLen);
+                if (valid)
+                    scheduler.submitJpeg(x, y, w, h, new JpegWork(x, y, w, h, jpegData, jpegDataLen));
+                else
+                    jpegPool.recycle(jpegData);
+                return;
+            }
+            if (jpegDataLen > inflBuf.length) {
+                inflBuf = new byte[2*jpegDataLen];
+            }
+            rfb.readFully(inflBuf, 0, jpegDataLen);
+            if (!valid)
+                return;
+
+            // Decode JPEG data
+            Bitmap tightBitmap = BitmapFactory.decodeByteArray(inflBuf, 0, jpegDataLen, bitmapopts);
+
+            // Copy decoded data into bitmapData and recycle bitmap.
+            bitmapData.updateBitmap(tightBitmap, x, y, w, h);
+            vncCanvas.reDraw(x, y, w, h);
+            // To avoid running out of memory, recycle bitmap immediately.
+            tightBitmap.recycle();
+            return;
+        }
+
+        // Read filter id and parameters.
+        if ((comp_ctl & RfbProto.TightExplicitFilter) != 0) {
+            int filter_id = rfb.is.readUnsignedByte();
+
+            if (filter_id == RfbProto.TightFilterPalette) {
+                numColors = rfb.is.readUnsignedByte() + 1;
+
+                if (converter.bytesPerTightPixel == 1 && numColors != 2) {
+                    throw new Exception("Incorrect tight palette size: " + numColors);
+                }
+                rfb.readFully(colorBuf, 0, numColors * converter.bytesPerTightPixel);
+                converter.convertTight(colorBuf, 0, palette, 0, numColors);
+
+                if (numColors == 2)
+                    rowSize = (w + 7) / 8;
+
+            } else if (filter_id == RfbProto.TightFilterGradient) {
+                useGradient = true;
+            } else if (filter_id != RfbProto.TightFilterCopy) {
+                throw new Exception("Incorrect tight filter id: " + filter_id);
+            }
+        }
+
+        if (numColors == 0)
+            rowSize *= converter.bytesPerTightPixel;
+
+        // Read, optionally uncompress and decode data.
+        int dataSize = h * rowSize;
+
+        if (dataSize < RfbProto.TightMinToCompress) {
+            // Data size is small - not compressed with zlib.
+            rfb.readFully(uncompDataBuf, 0, dataSize);
+            if (!valid)
+                return;
+
+            if (parallel)
+                scheduler.waitForOverlapping(x, y, w, h);
+            drawData(x, y, w, h, uncompDataBuf, numColors, palette, useGradient);
+        } else {
+            // Data was compressed with zlib or zstd
+            int zlibDataLen = rfb.readCompactLen();
+            int stream_id = comp_ctl & 0x03;
+
+            if (parallel) {
+                byte[] data = dataPools[stream_id].obtain(zlibDataLen);
+                rfb.readFully(data, 0, zlibDataLen);
+                int[] workPalette = null;
+                if (numColors != 0) {
+                    workPalette = obtainPalette();
+                    System.arraycopy(palette, 0, workPalette, 0, numColors);
+                }
+                // A rectangle that is not drawn still has to go through its stream, but overlaps nothing.
+                scheduler.submitToStream(stream_id, x, y, valid ? w : 0, valid ? h : 0,
+                        new DataWork(x, y, w, h, valid, stream_id, zstd, data, zlibDataLen, dataSize,
+                                numColors, workPalette, useGradient));
+                return;
+            }
+
+            if (zlibDataLen > zlibData.length) {
+                zlibData = new byte[zlibDataLen * 2];
+            }
+            rfb.readFully(zlibData, 0, zlibDataLen);
+
+            if (dataSize > inflBuf.length) {
+                inflBuf = new byte[dataSize * 2];
+            }
+
+            if (!inflate(stream_id, zstd, zlibData, zlibDataLen, inflBuf, dataSize))
+                return;
+
+            if (!valid)
+                return;
+
+            drawData(x, y, w, h, inflBuf, numColors, palette, useGradient);
+        }
+
+        bitmapData.updateBitmap(x, y, w, h);
+        vncCanvas.reDraw(x, y, w, h);
+    }
+
+    /**
+     * Waits until all Tight rectangles handed to worker threads have been drawn. Has to be called
+     * before anything else draws into or reallocates the framebuffer.
+     * @throws Exception the first error a worker ran into
+     */
+    void waitForAll() throws Exception {
+        if (scheduler != null)
+            scheduler.waitForAll();
+    }
+
+    private synchronized int[] obtainPalette() {
+        int[] p = freePalettes.poll();
+        return p != null ? p : new int[256];
+    }
+
+    private synchronized void recyclePalette(int[] p) {
+        if (p != null && freePalettes.size() < TightScheduler.STREAMS)
+            freePalettes.push(p);
+    }
+
+    private void resetStream(int stream) {
+        inflaters[stream] = null;
+        if (zstdInflaters[stream] != null) {
+            zstdInflaters[stream].end();
+            zstdInflaters[stream] = null;
+        }
+    }
+
+    /**
+     * Inflates the data of a Tight rectangle with one of the four zlib or zstd streams.
+     * @return false if the data could not be decompressed and should not be drawn
+     */
+    private boolean inflate(int stream, boolean zstd, byte[] data, int len, byte[] dst, int size) {
+        if (zstd) {
+            if (zstdInflaters[stream] == null) {
+                zstdInflaters[stream] = new TightZstdInflater();
+            }
+
+            TightZstdInflater myInflater = zstdInflaters[stream];
+            myInflater.setInput(data, 0, len);
+
+            try {
+                myInflater.inflate(dst, 0, size);
+            } catch (IOException e) {
+                // The stream can no longer be trusted, start over with a fresh context.
+                e.printStackTrace();
+                myInflater.end();
+                zstdInflaters[stream] = null;
+                return false;
+            }
+        } else {
+            if (inflaters[stream] == null) {
+                inflaters[stream] = new Inflater();
+            }
+
+            Inflater myInflater = inflaters[stream];
+            myInflater.setInput(data, 0, len);
+
+            try {
+                myInflater.inflate(dst, 0, size);
+            } catch (DataFormatException e) {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Turns the uncompressed data of a Tight rectangle into pixels.
+     */
+    private void drawData(int x, int y, int w, int h, byte[] data, int numColors, int[] palette,
+                          boolean gradient) {
+        AbstractBitmapData bitmapData = decoder.bitmapData;
+        PixelConverter converter = decoder.pixelConverter;
+        int[] pixels = bitmapData.bitmapPixels;
+        int offset = bitmapData.offset(x, y);
+        int stride = bitmapData.bitmapwidth;
+
+        if (numColors != 0) {
+            // Indexed colors.
+            if (numColors == 2) {
+                // Two colors.
+                TightFilters.decodeMono(pixels, offset, stride, w, h, data, palette);
+            } else {
+                // 3..255 colors (not sent for 8-bit color models).
+                TightFilters.decodePalette(pixels, offset, stride, w, h, data, palette);
+            }
+        } else if (gradient) {
+            // "Gradient"-processed data (not sent for 8-bit color models).
+            if (converter.bytesPerTightPixel == 2) {
+                TightFilters.decodeGradient16(pixels, offset, stride, w, h, data, gradientRows.get());
+            } else {
+                TightFilters.decodeGradient(pixels, offset, stride, w, h, data, gradientRows.get());
+            }
+        } else {
+            // Raw data.
+            TightFilters.decodeCopy(converter, pixels, offset, stride, w, h, data);
+        }
+    }
+
+    /**
+     * A zlib or zstd compressed Tight rectangle decoded on the worker thread of its stream.
+     */
+    private class DataWork implements TightScheduler.Work {
+        private final int x, y, w, h;
+        private final boolean valid;
+        private final int stream;
+        private final boolean zstd;
+        private final byte[] data;
+        private final int dataLen;
+        private final int dataSize;
+        private final int numColors;
+        private final int[] palette;
+        private final boolean gradient;
+        private byte[] inflated;
+
+        DataWork(int x, int y, int w, int h, boolean valid, int stream, boolean zstd, byte[] data,
+                 int dataLen, int dataSize, int numColors, int[] palette, boolean gradient) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.valid = valid;
+            this.stream = stream;
+            this.zstd = zstd;
+            this.data = data;
+            this.dataLen = dataLen;
+            this.dataSize = dataSize;
+            this.numColors = numColors;
+            this.palette = palette;
+            this.gradient = gradient;
+        }
+
+        @Override
+        public void decode() {
+            inflated = inflatedPools[stream].obtain(dataSize);
+            boolean inflatedOk = inflate(stream, zstd, data, dataLen, inflated, dataSize);
+            dataPools[stream].recycle(data);
+            if (!inflatedOk) {
+                inflatedPools[stream].recycle(inflated);
+                inflated = null;
+            }
+        }
+
+        @Override
+        public void apply() {
+            try {
+                if (inflated == null || !valid)
+                    return;
+                drawData(x, y, w, h, inflated, numColors, palette, gradient);
+                decoder.bitmapData.updateBitmap(x, y, w, h);
+                decoder.vncCanvas.reDraw(x, y, w, h);
+            } finally {
+                if (inflated != null)
+                    inflatedPools[stream].recycle(inflated);
+                recyclePalette(palette);
+            }
+        }
+    }
+
+    /**
+     * A JPEG rectangle decoded on the JPEG worker pool.
+     */
+    private class JpegWork implements TightScheduler.Work {
+        private final int x, y, w, h;
+        private final byte[] data;
+        private final int dataLen;
+        private Bitmap bitmap;
+
+        JpegWork(int x, int y, int w, int h, byte[] data, int dataLen) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.data = data;
+            this.dataLen = dataLen;
+        }
+
+        @Override
+        public void decode() {
+            // The shared options hold a temporary buffer, so each decode gets its own.
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inDither          = false;
+            opts.inPreferredConfig = Bitmap.Config.RGB_565;
+            opts.inScaled          = false;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, dataLen, opts);
+            jpegPool.recycle(data);
+        }
+
+        @Override
+        public void apply() {
+            decoder.bitmapData.updateBitmap(bitmap, x, y, w, h);
+            decoder.vncCanvas.reDraw(x, y, w, h);
+            // To avoid running out of memory, recycle bitmap immediately.
+            bitmap.recycle();
+        }
+    }
+}
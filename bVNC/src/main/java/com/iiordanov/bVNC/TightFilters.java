@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+
+/**
+ * The filters Tight data goes through before it is compressed, undone into color ints. They
+ * only touch arrays, so rectangles may be filtered on any thread, and the benchmarks can run
+ * them outside of Android. Each writes a w x h rectangle starting at pixels[offset], with rows
+ * stride pixels apart.
+ */
+class TightFilters {
+    private static final int[] GRADIENT16_SHIFT = { 11, 5, 0 };
+    private static final int[] GRADIENT16_MAX = { 0x1F, 0x3F, 0x1F };
+
+    /**
+     * The previous and current rows the gradient filter predicts pixels from, kept so that
+     * they are not allocated for each rectangle. Only to be used by one thread at a time.
+     */
+    static class GradientRows {
+        private byte[] prevRow = new byte[0];
+        private byte[] thisRow = new byte[0];
+        private int[] prevRow16 = new int[0];
+        private int[] thisRow16 = new int[0];
+        private final byte[] pix = new byte[3];
+        private final int[] est = new int[3];
+        private final int[] pix16 = new int[3];
+
+        /**
+         * Makes room for rows of the given number of components, with the previous row all zero.
+         */
+        private void prepare(int size) {
+            if (prevRow.length < size) {
+                prevRow = new byte[size];
+                thisRow = new byte[size];
+            } else {
+                Arrays.fill(prevRow, 0, size, (byte)0);
+            }
+        }
+
+        private void prepare16(int size) {
+            if (prevRow16.length < size) {
+                prevRow16 = new int[size];
+                thisRow16 = new int[size];
+            } else {
+                Arrays.fill(prevRow16, 0, size, 0);
+            }
+        }
+    }
+
+    //
+    // Decode data that went through the copy filter, pixels in the Tight pixel format.
+    //
+    static void decodeCopy(PixelConverter converter, int[] pixels, int offset, int stride, int w, int h,
+                           byte[] src) {
+        int l = w * converter.bytesPerTightPixel;
+        for (int dy = 0, boffset = 0; dy < h; dy++, boffset += l, offset += stride) {
+            converter.convertTight(src, boffset, pixels, offset, w);
+        }
+    }
+
+    //
+    // Decode a rectangle of 3..256 colors, one palette index per byte.
+    //
+    static void decodePalette(int[] pixels, int offset, int stride, int w, int h, byte[] src,
+                              int[] palette) {
+        int boffset = 0;
+        for (int dy = 0; dy < h; dy++) {
+            int i = offset + dy * stride;
+            for (int end = i + w; i < end; i++) {
+                pixels[i] = palette[src[boffset++] & 0xFF];
+            }
+        }
+    }
+
+    //
+    // Decode 1bpp-encoded bi-color rectangle.
+    //
+    static void decodeMono(int[] pixels, int offset, int stride, int w, int h, byte[] src,
+                           int[] palette) {
+
+        int dx, dy, n;
+        int i = offset;
+        int rowBytes = (w + 7) / 8;
+        byte b;
+
+        for (dy = 0; dy < h; dy++) {
+            for (dx = 0; dx < w / 8; dx++) {
+                b = src[dy*rowBytes+dx];
+                for (n = 7; n >= 0; n--) {
+                    pixels[i++] = palette[b >> n & 1];
+                }
+            }
+            for (n = 7; n >= 8 - w % 8; n--) {
+                pixels[i++] = palette[src[dy*rowBytes+dx] >> n & 1];
+            }
+            i += (stride - w);
+        }
+    }
+
+    //
+    // Decode data processed with the "Gradient" filter.
+    //
+    static void decodeGradient(int[] pixels, int offset, int stride, int w, int h, byte[] buf,
+                               GradientRows rows) {
+
+        int dx, dy, c;
+        rows.prepare(w * 3);
+        byte[] prevRow = rows.prevRow;
+        byte[] thisRow = rows.thisRow;
+        byte[] pix = rows.pix;
+        int[] est = rows.est;
+
+        for (dy = 0; dy < h; dy++) {
+
+            /* First pixel in a row */
+            for (c = 0; c < 3; c++) {
+                pix[c] = (byte)(prevRow[c] + buf[dy * w * 3 + c]);
+                thisRow[c] = pix[c];
+            }
+            pixels[offset++] = (pix[0] & 0xFF) << 16 | (pix[1] & 0xFF) << 8 | (pix[2] & 0xFF);
+
+            /* Remaining pixels of a row */
+            for (dx = 1; dx < w; dx++) {
+                for (c = 0; c < 3; c++) {
+                    est[c] = ((prevRow[dx * 3 + c] & 0xFF) + (pix[c] & 0xFF) -
+                              (prevRow[(dx-1) * 3 + c] & 0xFF));
+                    if (est[c] > 0xFF) {
+                        est[c] = 0xFF;
+                    } else if (est[c] < 0x00) {
+                        est[c] = 0x00;
+                    }
+                    pix[c] = (byte)(est[c] + buf[(dy * w + dx) * 3 + c]);
+                    thisRow[dx * 3 + c] = pix[c];
+                }
+                pixels[offset++] = (pix[0] & 0xFF) << 16 | (pix[1] & 0xFF) << 8 | (pix[2] & 0xFF);
+            }
+
+            System.arraycopy(thisRow, 0, prevRow, 0, w * 3);
+            offset += (stride - w);
+        }
+    }
+
+    //
+    // Decode "Gradient"-processed data of a 16-bit color model. Each component is predicted
+    // at its own depth and the differences come packed in 16-bit pixels.
+    //
+    static void decodeGradient16(int[] pixels, int offset, int stride, int w, int h, byte[] buf,
+                                 GradientRows rows) {
+
+        final int[] shift = GRADIENT16_SHIFT;
+        final int[] max = GRADIENT16_MAX;
+        int dx, dy, c, diff;
+        rows.prepare16(w * 3);
+        int[] prevRow = rows.prevRow16;
+        int[] thisRow = rows.thisRow16;
+        int[] pix = rows.pix16;
+        int est;
+        int i = 0;
+
+        for (dy = 0; dy < h; dy++) {
+            for (dx = 0; dx < w; dx++, i += 2) {
+                diff = (buf[i] & 0xFF) | (buf[i + 1] & 0xFF) << 8;
+                for (c = 0; c < 3; c++) {
+                    if (dx == 0) {
+                        est = prevRow[c];
+                    } else {
+                        est = prevRow[dx * 3 + c] + pix[c] - prevRow[(dx - 1) * 3 + c];
+                        if (est > max[c]) {
+                            est = max[c];
+                        } else if (est < 0) {
+                            est = 0;
+                        }
+                    }
+                    pix[c] = ((diff >> shift[c]) + est) & max[c];
+                    thisRow[dx * 3 + c] = pix[c];
+                }
+                pixels[offset++] = PixelConverter.Rgb565.color(pix[0] << 11 | pix[1] << 5 | pix[2]);
+            }
+
+            System.arraycopy(thisRow, 0, prevRow, 0, w * 3);
+            offset += (stride - w);
+        }
+    }
+}
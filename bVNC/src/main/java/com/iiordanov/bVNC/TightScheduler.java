@@ -0,0 +1,243 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the decoding of Tight rectangles on worker threads while the protocol thread goes on
+ * reading the next ones. The data of each of the four zlib streams has to be inflated in order,
+ * so each stream has a queue that hands its jobs to the workers one at a time, while JPEG
+ * rectangles, which share no state at all, go to the workers directly. The workers are those
+ * of DecoderPool, shared by all sessions.
+ *
+ * A job is decoded as soon as a worker picks it up, but its pixels are only written once all
+ * earlier jobs whose rectangles overlap it are done, so the framebuffer ends up as if the
+ * rectangles had been decoded one after another. A job whose earlier jobs are not done yet does
+ * not wait for them on its worker, it is written by a worker once the last of them is done.
+ * Workers never wait, so a few of them are enough for any number of sessions.
+ */
+class TightScheduler {
+    static final int STREAMS = 4;
+
+    /**
+     * The two halves of decoding a rectangle.
+     */
+    interface Work {
+        /**
+         * Does everything that does not touch the framebuffer. Runs without waiting for other jobs.
+         */
+        void decode() throws Exception;
+
+        /**
+         * Writes the decoded pixels. Runs after every earlier overlapping job is done.
+         */
+        void apply() throws Exception;
+    }
+
+    private class Job implements Runnable {
+        final int x, y, w, h;
+        final Work work;
+        final CountDownLatch done = new CountDownLatch(1);
+        // The decoding of this job, and the earlier jobs it has to be written after.
+        private final AtomicInteger remaining = new AtomicInteger(1);
+        // Later jobs to be written after this one, null once this one is done.
+        private ArrayList<Job> dependents = new ArrayList<Job>();
+
+        Job(int x, int y, int w, int h, Work work) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.work = work;
+        }
+
+        /**
+         * Makes this job be written after dependency. Only called before this job is started.
+         */
+        void addDependency(Job dependency) {
+            synchronized (dependency) {
+                if (dependency.dependents == null)
+                    return;
+                dependency.dependents.add(this);
+                remaining.incrementAndGet();
+            }
+        }
+
+        boolean overlaps(int x, int y, int w, int h) {
+            return x < this.x + this.w && this.x < x + w && y < this.y + this.h && this.y < y + h;
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (failure == null)
+                    work.decode();
+            } catch (Throwable e) {
+                if (failure == null)
+                    failure = e;
+            }
+            if (remaining.decrementAndGet() == 0)
+                apply();
+        }
+
+        private void dependencyDone() {
+            if (remaining.decrementAndGet() == 0) {
+                DecoderPool.executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        apply();
+                    }
+                });
+            }
+        }
+
+        private void apply() {
+            try {
+                if (failure == null)
+                    work.apply();
+            } catch (Throwable e) {
+                if (failure == null)
+                    failure = e;
+            } finally {
+                ArrayList<Job> waiting;
+                synchronized (this) {
+                    waiting = dependents;
+                    dependents = null;
+                }
+                done.countDown();
+                for (Job job : waiting) {
+                    job.dependencyDone();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the jobs of one stream to the workers one at a time, in the order they were submitted.
+     */
+    private static class StreamQueue implements Executor {
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+        private Runnable active;
+
+        @Override
+        public synchronized void execute(final Runnable r) {
+            queue.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (active == null)
+                scheduleNext();
+        }
+
+        private synchronized void scheduleNext() {
+            active = queue.poll();
+            if (active != null)
+                DecoderPool.executor().execute(active);
+        }
+    }
+
+    private final StreamQueue[] streamQueues = new StreamQueue[STREAMS];
+
+    // Jobs that may not be done yet, in the order they were submitted. Only used by the protocol thread.
+    private final ArrayList<Job> pending = new ArrayList<Job>();
+    private volatile Throwable failure;
+
+    TightScheduler() {
+        for (int i = 0; i < STREAMS; i++) {
+            streamQueues[i] = new StreamQueue();
+        }
+    }
+
+    /**
+     * Decodes a rectangle that was compressed with one of the zlib or zstd streams.
+     */
+    void submitToStream(int stream, int x, int y, int w, int h, Work work) {
+        submit(streamQueues[stream], x, y, w, h, work);
+    }
+
+    /**
+     * Decodes a JPEG rectangle.
+     */
+    void submitJpeg(int x, int y, int w, int h, Work work) {
+        submit(DecoderPool.executor(), x, y, w, h, work);
+    }
+
+    private void submit(Executor executor, int x, int y, int w, int h, Work work) {
+        Job job = new Job(x, y, w, h, work);
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            Job earlier = pending.get(i);
+            if (earlier.isDone()) {
+                pending.remove(i);
+            } else if (earlier.overlaps(x, y, w, h)) {
+                job.addDependency(earlier);
+            }
+        }
+        pending.add(job);
+        executor.execute(job);
+    }
+
+    /**
+     * Waits for the jobs that overlap a rectangle, before the protocol thread draws it itself.
+     */
+    void waitForOverlapping(int x, int y, int w, int h) throws Exception {
+        for (Job job : pending) {
+            if (job.overlaps(x, y, w, h))
+                job.done.await();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Waits for all jobs submitted so far.
+     * @throws Exception the first error any of them ran into
+     */
+    void waitForAll() throws Exception {
+        for (Job job : pending) {
+            job.done.await();
+        }
+        pending.clear();
+        checkFailure();
+    }
+
+    private void checkFailure() throws Exception {
+        Throwable e = failure;
+        if (e == null)
+            return;
+        failure = null;
+        if (e instanceof Exception)
+            throw (Exception) e;
+        throw new Exception(e);
+    }
+}
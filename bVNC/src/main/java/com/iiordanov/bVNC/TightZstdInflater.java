@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * One of the four TightZstd compression streams. Like the zlib streams of plain Tight, the
+ * decompression context lives across rectangles until the server asks for it to be reset,
+ * and the compressed bytes of each rectangle are fed in as they arrive.
+ */
+class TightZstdInflater {
+
+    /**
+     * Hands the compressed bytes of the current rectangle to the zstd stream. Reports the end
+     * of input once, so the stream can return what it has, and fails if asked again, since
+     * that means the rectangle promised more data than was sent.
+     */
+    private static class Source extends InputStream {
+        private byte[] buf;
+        private int pos;
+        private int end;
+        private boolean endReported;
+
+        void set(byte[] b, int off, int len) {
+            buf = b;
+            pos = off;
+            end = off + len;
+            endReported = false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= end) {
+                endOfInput();
+                return -1;
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos >= end) {
+                endOfInput();
+                return -1;
+            }
+            int n = Math.min(len, end - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return end - pos;
+        }
+
+        private void endOfInput() throws IOException {
+            if (endReported)
+                throw new EOFException("TightZstd: compressed data exhausted");
+            endReported = true;
+        }
+    }
+
+    private final Source source = new Source();
+    private ZstdInputStream zstd;
+
+    /**
+     * Sets the compressed data of the next rectangle.
+     */
+    void setInput(byte[] b, int off, int len) {
+        source.set(b, off, len);
+    }
+
+    /**
+     * Decompresses exactly len bytes into dst.
+     */
+    void inflate(byte[] dst, int off, int len) throws IOException {
+        if (zstd == null) {
+            zstd = new ZstdInputStream(source);
+            // The stream is fed one rectangle at a time, so running out of input is not an error.
+            zstd.setContinuous(true);
+        }
+        while (len > 0) {
+            int n = zstd.read(dst, off, len);
+            if (n < 0)
+                throw new EOFException("TightZstd: stream ended");
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Releases the native decompression context.
+     */
+    void end() {
+        if (zstd != null) {
+            try {
+                zstd.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            zstd = null;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import com.undatech.opaque.RfbConnectable;
+
+/**
+ * Keeps the framebuffer in bitmapPixels like FullBufferBitmapData, and shows it through a grid
+ * of small bitmaps instead of one big one. Decoding only marks the tiles it touched as dirty,
+ * and the UI thread copies the pixels of the dirty tiles it is about to draw into their bitmaps.
+ * Each tile has its own lock, so the decoder and the UI thread only wait for each other when
+ * they are working on the same tile, and only the tiles that changed have to be uploaded
+ * to the GPU again.
+ */
+class TiledBitmapData extends AbstractBitmapData {
+    private final static String TAG = "TiledBitmapData";
+
+    /**
+     * Multiply this times total number of pixels to get estimate of process size with all buffers plus
+     * safety factor
+     */
+    static final int CAPACITY_MULTIPLIER = 7;
+    static final int TILE_SIZE = 128;
+    Bitmap.Config cfg = Bitmap.Config.RGB_565;
+
+    private static class Tile {
+        final int x, y, w, h;
+        final Bitmap bitmap;
+        // Guarded by the tile itself.
+        boolean dirty = true;
+
+        Tile(int x, int y, int w, int h, Bitmap.Config cfg) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            bitmap = Bitmap.createBitmap(w, h, cfg);
+            bitmap.setHasAlpha(false);
+        }
+    }
+
+    private Tile[] tiles;
+    private int tileColumns;
+    private int tileRows;
+
+    class TiledBitmapDrawable extends AbstractBitmapDrawable {
+
+        TiledBitmapDrawable() {
+            super(TiledBitmapData.this);
+        }
+
+        /* (non-Javadoc)
+         * @see android.graphics.drawable.DrawableContainer#draw(android.graphics.Canvas)
+         */
+        @Override
+        public void draw(Canvas canvas) {
+            try {
+                Rect clip = canvas.getClipBounds();
+                int firstColumn = Math.max(0, clip.left / TILE_SIZE);
+                int lastColumn = Math.min(tileColumns - 1, (clip.right - 1) / TILE_SIZE);
+                int firstRow = Math.max(0, clip.top / TILE_SIZE);
+                int lastRow = Math.min(tileRows - 1, (clip.bottom - 1) / TILE_SIZE);
+                for (int row = firstRow; row <= lastRow; row++) {
+                    for (int column = firstColumn; column <= lastColumn; column++) {
+                        Tile tile = tiles[row * tileColumns + column];
+                        upload(tile);
+                        canvas.drawBitmap(tile.bitmap, tile.x, tile.y, _defaultPaint);
+                    }
+                }
+                synchronized (this) {
+                    canvas.drawBitmap(softCursor, cursorRect.left, cursorRect.top, _defaultPaint);
+                }
+            } catch (Throwable e) { }
+        }
+    }
+
+    TiledBitmapData(RfbConnectable rfb, RemoteCanvas c, boolean trueColor)
+    {
+        super(rfb,c);
+        if (trueColor)
+            cfg = Bitmap.Config.ARGB_8888;
+        allocate(framebufferwidth, framebufferheight);
+        drawable.startDrawing();
+    }
+
+    private void allocate(int width, int height) {
+        // To please createBitmap, we ensure the size it at least 1x1.
+        bitmapwidth  = Math.max(width, 1);
+        bitmapheight = Math.max(height, 1);
+        bitmapPixels = new int[bitmapwidth * bitmapheight];
+        tileColumns = (bitmapwidth + TILE_SIZE - 1) / TILE_SIZE;
+        tileRows = (bitmapheight + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new Tile[tileColumns * tileRows];
+        for (int row = 0; row < tileRows; row++) {
+            for (int column = 0; column < tileColumns; column++) {
+                int x = column * TILE_SIZE;
+                int y = row * TILE_SIZE;
+                tiles[row * tileColumns + column] = new Tile(x, y, Math.min(TILE_SIZE, bitmapwidth - x),
+                        Math.min(TILE_SIZE, bitmapheight - y), cfg);
+            }
+        }
+        android.util.Log.i(TAG, "bitmapsize = ("+bitmapwidth+","+bitmapheight+"), tiles = "+tiles.length);
+    }
+
+    /**
+     * Copies the pixels of a dirty tile into its bitmap. Called in the UI thread.
+     */
+    private void upload(Tile tile) {
+        synchronized (tile) {
+            if (tile.dirty) {
+                tile.dirty = false;
+                tile.bitmap.setPixels(bitmapPixels, offset(tile.x, tile.y), bitmapwidth, 0, 0, tile.w, tile.h);
+            }
+        }
+    }
+
+    @Override
+    public boolean validDraw(int x, int y, int w, int h) {
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#allowsConcurrentUpdates()
+     */
+    @Override
+    boolean allowsConcurrentUpdates() {
+        return true;
+    }
+
+    @Override
+    public int offset(int x, int y) {
+        return y * bitmapwidth + x;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#createDrawable()
+     */
+    @Override
+    AbstractBitmapDrawable createDrawable() {
+        return new TiledBitmapDrawable();
+    }
+
+    /**
+     * Marks the tiles covering a rectangle as changed. The pixels are picked up when the tiles
+     * are next drawn.
+     */
+    @Override
+    public void updateBitmap(int x, int y, int w, int h) {
+        int firstColumn = Math.max(0, x / TILE_SIZE);
+        int lastColumn = Math.min(tileColumns - 1, (x + w - 1) / TILE_SIZE);
+        int firstRow = Math.max(0, y / TILE_SIZE);
+        int lastRow = Math.min(tileRows - 1, (y + h - 1) / TILE_SIZE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                Tile tile = tiles[row * tileColumns + column];
+                synchronized (tile) {
+                    tile.dirty = true;
+                }
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateBitmap(Bitmap, int, int, int, int)
+     */
+    @Override
+    public void updateBitmap(Bitmap b, int x, int y, int w, int h) {
+        b.getPixels(bitmapPixels, offset(x, y), bitmapwidth, 0, 0, w, h);
+        updateBitmap(x, y, w, h);
+    }
+
+    @Override
+    public void imageRect(int x, int y, int w, int h, int[] pix) {
+        for (int j = 0; j < h; j++) {
+            System.arraycopy(pix, w * j, bitmapPixels, offset(x, y + j), w);
+        }
+        updateBitmap(x, y, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#copyRect(android.graphics.Rect, android.graphics.Rect, android.graphics.Paint)
+     */
+    @Override
+    public void copyRect(int sx, int sy, int dx, int dy, int w, int h) {
+        int startSrcY, endSrcY, dstY, deltaY;
+        if (sy > dy) {
+            startSrcY = sy;
+            endSrcY = sy + h;
+            dstY = dy;
+            deltaY = +1;
+        } else {
+            startSrcY = sy + h - 1;
+            endSrcY = sy - 1;
+            dstY = dy + h - 1;
+            deltaY = -1;
+        }
+        for (int y = startSrcY; y != endSrcY; y += deltaY) {
+            try {
+                System.arraycopy(bitmapPixels, offset(sx, y), bitmapPixels, offset(dx, dstY), w);
+            } catch (Exception e) {
+                // There was an index out of bounds exception, but we continue copying what we can.
+                e.printStackTrace();
+            }
+            dstY += deltaY;
+        }
+        updateBitmap(dx, dy, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#drawRect(int, int, int, int, android.graphics.Paint)
+     */
+    @Override
+    void drawRect(int x, int y, int w, int h, Paint paint) {
+        int color = paint.getColor();
+        int offset = offset(x, y);
+        for (int j = 0; j < h; j++, offset += bitmapwidth) {
+            Arrays.fill(bitmapPixels, offset, offset + w, color);
+        }
+        updateBitmap(x, y, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#scrollChanged(int, int)
+     */
+    @Override
+    void scrollChanged(int newx, int newy) {
+        // Don't need to do anything here
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#frameBufferSizeChanged(RfbProto)
+     */
+    @Override
+    public void frameBufferSizeChanged () {
+        framebufferwidth=rfb.framebufferWidth();
+        framebufferheight=rfb.framebufferHeight();
+        if ( bitmapwidth < framebufferwidth || bitmapheight < framebufferheight ) {
+            android.util.Log.i(TAG, "One or more bitmap dimensions increased, realloc = ("
+                    +framebufferwidth+","+framebufferheight+")");
+            dispose();
+            // Try to free up some memory.
+            System.gc();
+            allocate(framebufferwidth, framebufferheight);
+            drawable     = createDrawable();
+            drawable.startDrawing();
+        } else {
+            android.util.Log.i(TAG, "Both bitmap dimensions same or smaller, no realloc = ("
+                    +framebufferwidth+","+framebufferheight+")");
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#syncScroll()
+     */
+    @Override
+    void syncScroll() {
+        // Don't need anything here either
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#dispose()
+     */
+    @Override
+    void dispose() {
+        super.dispose();
+        if (tiles != null) {
+            for (Tile tile : tiles) {
+                tile.bitmap.recycle();
+            }
+        }
+        tiles = null;
+    }
+}
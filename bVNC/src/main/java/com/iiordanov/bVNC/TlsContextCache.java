@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * Keeps one SSLContext per kind of tunnel and server for the whole process, so that
+ * reconnecting to a server resumes the TLS session of the last connection, skipping the
+ * certificate exchange and the asymmetric part of the handshake.
+ *
+ * The contexts are shared, so the certificate checks of each tunnel cannot be part of them.
+ * They are looked up for the thread doing the handshake instead, and are run on the
+ * certificate of the resumed session as well, so a resumed session is trusted no more than
+ * a new one would be.
+ */
+class TlsContextCache {
+    private static final String TAG = "TlsContextCache";
+
+    // How long a session may be resumed after it was established, in seconds.
+    static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private static final Map<String, SSLContext> contexts = new HashMap<String, SSLContext>();
+    private static final Map<String, X509Certificate> certificates = new HashMap<String, X509Certificate>();
+
+    // The certificate checks of the tunnel doing a handshake on the current thread.
+    private static final ThreadLocal<X509TrustManager> handshakeTrustManager = new ThreadLocal<X509TrustManager>();
+
+    private static final X509TrustManager delegatingTrustManager = new X509TrustManager() {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            throw new CertificateException("no clients");
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            X509TrustManager trustManager = handshakeTrustManager.get();
+            if (trustManager == null) {
+                throw new CertificateException("no certificate check for this handshake");
+            }
+            trustManager.checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    };
+
+    /**
+     * Decodes a certificate saved in base64, keeping it for the next connection.
+     */
+    static synchronized X509Certificate getCertificate(String certstr) throws CertificateException {
+        X509Certificate cert = certificates.get(certstr);
+        if (cert == null) {
+            CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+            ByteArrayInputStream in = new ByteArrayInputStream(Base64.decode(certstr, Base64.DEFAULT));
+            cert = (X509Certificate) certFactory.generateCertificate(in);
+            certificates.put(certstr, cert);
+        }
+        return cert;
+    }
+
+    private static synchronized SSLContext getContext(String key) throws GeneralSecurityException {
+        SSLContext sc = contexts.get(key);
+        if (sc == null) {
+            Log.i(TAG, "Generating TLS context for " + key);
+            sc = SSLContext.getInstance("TLS");
+            sc.init(null, new TrustManager[] { delegatingTrustManager }, null);
+            sc.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+            contexts.put(key, sc);
+        }
+        return sc;
+    }
+
+    /**
+     * Layers TLS over a connected socket with the context shared by the tunnels of the given kind
+     * to host and port. The handshake has to be done with startHandshake().
+     */
+    static SSLSocket createSocket(String kind, Socket sock, String host, int port)
+            throws IOException, GeneralSecurityException {
+        SSLSocket sslsock = (SSLSocket) getContext(kind + "/" + host + ":" + port)
+                .getSocketFactory().createSocket(sock, host, port, true);
+        enableSessionTickets(sslsock);
+        return sslsock;
+    }
+
+    /**
+     * Session tickets let servers resume sessions they did not keep themselves. Android's provider
+     * supports them, but only has a method of its own to turn them on.
+     */
+    private static void enableSessionTickets(SSLSocket sslsock) {
+        try {
+            sslsock.getClass().getMethod("setUseSessionTickets", boolean.class).invoke(sslsock, true);
+        } catch (Exception e) {
+            Log.d(TAG, "Session tickets not available: " + e);
+        }
+    }
+
+    /**
+     * Does the handshake of sslsock, checking the certificate of the server with trustManager,
+     * or accepting none if it is null. If the session was resumed the certificate it was
+     * established with is checked.
+     * @return true if the session was resumed
+     */
+    static boolean startHandshake(SSLSocket sslsock, final X509TrustManager trustManager) throws IOException {
+        final boolean[] checked = { false };
+        handshakeTrustManager.set(trustManager == null ? null : new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+                trustManager.checkClientTrusted(chain, authType);
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+                checked[0] = true;
+                trustManager.checkServerTrusted(chain, authType);
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return trustManager.getAcceptedIssuers();
+            }
+        });
+        long start = SystemClock.elapsedRealtime();
+        try {
+            sslsock.startHandshake();
+        } finally {
+            handshakeTrustManager.remove();
+        }
+        boolean resumed = !checked[0];
+        Log.i(TAG, (resumed ? "Resumed" : "New") + " TLS session in " + (SystemClock.elapsedRealtime() - start) + "ms");
+
+        if (resumed && trustManager != null) {
+            try {
+                Certificate[] peer = sslsock.getSession().getPeerCertificates();
+                X509Certificate[] chain = new X509Certificate[peer.length];
+                for (int i = 0; i < peer.length; i++) {
+                    chain[i] = (X509Certificate) peer[i];
+                }
+                trustManager.checkServerTrusted(chain, "UNKNOWN");
+            } catch (CertificateException e) {
+                sslsock.getSession().invalidate();
+                sslsock.close();
+                throw new SSLException("Certificate of the resumed session not trusted: " + e);
+            }
+        }
+        return resumed;
+    }
+}
@@ -84,6 +84,7 @@ import com.undatech.opaque.ConnectionSetupActivity;
 import com.undatech.opaque.RemoteClientLibConstants;
 import com.undatech.opaque.dialogs.MessageFragment;
 import com.undatech.opaque.util.FileUtils;
+import com.undatech.opaque.util.Thumbnails;
 import com.undatech.remoteClientUi.*;
 
 public class Utils {
@@ -442,13 +443,13 @@ public class Utils {
     static void writeScreenshotToFile(Context context, AbstractBitmapData drawable,
                                       String filePath, int dstWidth, int dstHeight) {
         try {
-            if (drawable != null && drawable.mbitmap != null) {
+            if (drawable != null) {
                 // TODO: Add Filename to settings.
-                FileOutputStream out = new FileOutputStream(filePath);
-                Bitmap tmp = Bitmap.createScaledBitmap(drawable.mbitmap, dstWidth, dstHeight, true);
-                drawable.mbitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
-                out.close();
-                tmp.recycle();
+                // Only the scaling happens here, the drawable is disposed of right after.
+                Bitmap thumbnail = drawable.createThumbnail(dstWidth, dstHeight);
+                if (thumbnail != null) {
+                    Thumbnails.save(thumbnail, filePath);
+                }
             }
         } catch (Exception e) {
             e.printStackTrace();
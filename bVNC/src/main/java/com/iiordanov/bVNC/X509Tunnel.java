@@ -27,7 +27,6 @@ import javax.net.ssl.*;
 
 import android.os.Handler;
 import android.os.Message;
-import android.util.Base64;
 import android.util.Log;
 
 import com.undatech.opaque.RemoteClientLibConstants;
@@ -53,9 +52,7 @@ public class X509Tunnel extends TLSTunnelBase {
     this.rfb = rfb;
     this.handler = handler;
     if (certstr != null && !certstr.equals("")) {
-        CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-        ByteArrayInputStream in = new ByteArrayInputStream(Base64.decode(certstr, Base64.DEFAULT));
-        cert = (X509Certificate)certFactory.generateCertificate(in);
+        cert = TlsContextCache.getCertificate(certstr);
     }
     
     Log.i(TAG, "X509Tunnel ended.");
@@ -93,11 +90,11 @@ public class X509Tunnel extends TLSTunnelBase {
     sock.setEnabledCipherSuites ((String[]) enabled.toArray (new String[0]));
   }
 
-  protected void initContext (SSLContext sc) throws java.security.GeneralSecurityException {
-    TrustManager[] myTM;
+  protected X509TrustManager getTrustManager () throws java.security.GeneralSecurityException {
+    X509TrustManager myTM;
 
     //if (cert != null) {
-      myTM = new TrustManager[] { new X509TrustManager () {
+      myTM = new X509TrustManager () {
         
         public java.security.cert.X509Certificate[] getAcceptedIssuers ()
         {
@@ -160,8 +157,7 @@ public class X509Tunnel extends TLSTunnelBase {
               }
           }
         }
-       }
-      };
+       };
     /*  
     } else {
       TrustManagerFactory tmf = TrustManagerFactory.getInstance ("X509");
@@ -169,6 +165,6 @@ public class X509Tunnel extends TLSTunnelBase {
       tmf.init (ks);
       myTM = tmf.getTrustManagers();
     }*/
-    sc.init (null, myTM, null);
+    return myTM;
   }
 }
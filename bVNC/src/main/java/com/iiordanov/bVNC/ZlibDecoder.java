@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ * Copyright (C) 2010 Michael A. MacDonald
+ * Copyright (C) 2004 Horizon Wimba.  All Rights Reserved.
+ * Copyright (C) 2001-2003 HorizonLive.com, Inc.  All Rights Reserved.
+ * Copyright (C) 2001,2002 Constantin Kaplinsky.  All Rights Reserved.
+ * Copyright (C) 2000 Tridia Corporation.  All Rights Reserved.
+ * Copyright (C) 1999 AT&T Laboratories Cambridge.  All Rights Reserved.
+ * 
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.zip.Inflater;
+
+/**
+ * Decodes Zlib rectangles, which are Raw rectangles compressed with one zlib stream that
+ * lasts for the whole connection.
+ */
+class ZlibDecoder implements EncodingDecoder {
+    private final Decoder decoder;
+    private byte[] zlibBuf;
+    private Inflater inflater;
+    private byte[] rowBuffer = new byte[128];
+
+    ZlibDecoder(Decoder decoder) {
+        this.decoder = decoder;
+    }
+
+    @Override
+    public void decode(RfbProto rfb, int x, int y, int w, int h) throws Exception {
+        AbstractBitmapData bitmapData = decoder.bitmapData;
+        PixelConverter converter = decoder.pixelConverter;
+        boolean valid = bitmapData.validDraw(x, y, w, h);
+        int nBytes = rfb.is.readInt();
+
+        if (zlibBuf == null || zlibBuf.length < nBytes) {
+            zlibBuf = new byte[nBytes*2];
+        }
+
+        rfb.readFully(zlibBuf, 0, nBytes);
+
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.setInput(zlibBuf, 0, nBytes);
+
+        int[] pixels = bitmapData.bitmapPixels;
+
+        final int l = w * converter.bytesPerPixel;
+        if (l > rowBuffer.length) {
+            rowBuffer = new byte[l];
+        }
+        byte[] row = rowBuffer;
+        for (int dy = y; dy < y + h; dy++) {
+            inflater.inflate(row, 0, l);
+            if ( ! valid)
+                continue;
+            converter.convert(row, 0, pixels, bitmapData.offset(x, dy), w);
+        }
+        if ( ! valid)
+            return;
+        bitmapData.updateBitmap(x, y, w, h);
+
+        decoder.vncCanvas.reDraw(x, y, w, h);
+    }
+}
@@ -23,7 +23,7 @@ package com.iiordanov.bVNC;
 // A ZlibInStream reads from a zlib.io.InputStream
 //
 
-public class ZlibInStream extends InStream {
+public class ZlibInStream extends CompressedInStream {
 
   static final int defaultBufSize = 16384;
 
@@ -55,6 +55,37 @@ public class ZlibInStream extends InStream {
 
   public int pos() { return ptrOffset + ptr; }
 
+  // readAvailable() copies up to length decompressed bytes into data and
+  // returns how many were copied.  It returns 0 only once all the bytes given
+  // to setUnderlying() have been consumed and the inflater has no more output.
+
+  public int readAvailable(byte[] data, int offset, int length) throws Exception {
+    if (ptr == end) {
+      ptrOffset += ptr;
+      ptr = end = 0;
+      if (underlying == null) return 0;
+
+      while (end == 0 && bytesIn > 0) {
+        decompress();
+      }
+
+      if (end == 0) {
+        // The input is used up, but the inflater may still be holding output.
+        try {
+          end = inflater.inflate(b, 0, bufSize);
+        } catch (java.util.zip.DataFormatException e) {
+          throw new Exception("ZlibInStream: inflate failed");
+        }
+        if (end == 0) return 0;
+      }
+    }
+
+    int n = Math.min(length, end - ptr);
+    System.arraycopy(b, ptr, data, offset, n);
+    ptr += n;
+    return n;
+  }
+
   protected int overrun(int itemSize, int nItems) throws Exception {
     if (itemSize > bufSize)
       throw new Exception("ZlibInStream overrun: max itemSize exceeded");
@@ -0,0 +1,333 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ * Copyright (C) 2010 Michael A. MacDonald
+ * Copyright (C) 2004 Horizon Wimba.  All Rights Reserved.
+ * Copyright (C) 2001-2003 HorizonLive.com, Inc.  All Rights Reserved.
+ * Copyright (C) 2001,2002 Constantin Kaplinsky.  All Rights Reserved.
+ * Copyright (C) 2000 Tridia Corporation.  All Rights Reserved.
+ * Copyright (C) 1999 AT&T Laboratories Cambridge.  All Rights Reserved.
+ * 
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+
+/**
+ * Decodes ZRLE rectangles: 64x64 tiles, each raw, solid, palette packed or run-length encoded,
+ * inside one zlib stream that lasts for the whole connection. ZSTDRLE rectangles are the same
+ * tiles inside a zstd stream instead. ZYWRLE rectangles share the stream of ZRLE, and send
+ * their raw tiles as lossy wavelet coefficients.
+ */
+class ZrleDecoder {
+    // Rectangles with at least this many tiles are decoded in parallel when enabled.
+    static final int PARALLEL_MIN_TILES = 4;
+    // Rectangles with more compressed data than this are shown a row of tiles at a time.
+    static final int ROW_DAMAGE_MIN_BYTES = 64 * 1024;
+
+    private final Decoder decoder;
+    private JavaInStream socketStream;
+    private final boolean zstd;
+    private CompressedInStream zis;
+    private final int[] tilePixels = new int[64 * 64];
+    private final int[] palette = new int[128];
+    private ZywrleSynthesizer synthesizer;
+    private byte[] pixelBuffer = new byte[128];
+    private byte[] inflated;
+    private int[] tileOffsets;
+
+    /**
+     * @param zstd true to decode ZSTDRLE rather than ZRLE
+     */
+    ZrleDecoder(Decoder decoder, boolean zstd) {
+        this.decoder = decoder;
+        this.zstd = zstd;
+    }
+
+    /**
+     * @param zywrle true for ZYWRLE rectangles
+     * @return the decoder for one of the two encodings, which share their state
+     */
+    EncodingDecoder forEncoding(final boolean zywrle) {
+        return new EncodingDecoder() {
+            @Override
+            public void decode(RfbProto rfb, int x, int y, int w, int h) throws Exception {
+                ZrleDecoder.this.decode(rfb, x, y, w, h, zywrle);
+            }
+        };
+    }
+
+    //
+    // Handle a ZRLE-encoded rectangle.
+    //
+    void decode(RfbProto rfb, int x, int y, int w, int h, boolean zywrle) throws Exception {
+
+        if (zis == null)
+            zis = zstd ? new ZstdInStream() : new ZlibInStream();
+        if (socketStream == null)
+            socketStream = new JavaInStream();
+
+        int nBytes = rfb.is.readInt();
+        if (nBytes > 64 * 1024 * 1024)
+            throw new Exception("ZRLE decoder: illegal compressed data size");
+
+        // Inflate the data straight from the connection as it arrives, rather than waiting
+        // for all of it. Tiles can be decoded and shown while the rest is still in transit.
+        socketStream.setUnderlying(rfb.is, nBytes);
+        zis.setUnderlying(socketStream, nBytes);
+
+        PixelConverter converter = decoder.pixelConverter;
+
+        // The server picks the number of wavelet levels from the quality level, and sends 8-bit
+        // pixels without the transform.
+        int zywrleLevel = 0;
+        if (zywrle && converter.bytesPerCompressedPixel > 1) {
+            zywrleLevel = ZywrleSynthesizer.level(rfb.getJpegQuality());
+            if (synthesizer == null)
+                synthesizer = new ZywrleSynthesizer();
+        }
+
+        int numTiles = ((w + 63) / 64) * ((h + 63) / 64);
+        if (zywrleLevel == 0 && decoder.parallelDecoding && numTiles >= PARALLEL_MIN_TILES &&
+                DecoderPool.parallelism() > 1) {
+            decodeParallel(x, y, w, h, numTiles);
+            return;
+        }
+
+        AbstractBitmapData bitmapData = decoder.bitmapData;
+        RemoteCanvas vncCanvas = decoder.vncCanvas;
+        final CompressedInStream zis = this.zis;
+        final int[] palette = this.palette;
+        final int[] tilePixels = this.tilePixels;
+        boolean valid=bitmapData.validDraw(x, y, w, h);
+        boolean rowDamage = valid && nBytes > ROW_DAMAGE_MIN_BYTES;
+        int damagedTo = y;
+
+        for (int ty = y; ty < y + h; ty += 64) {
+
+            int th = Math.min(y + h - ty, 64);
+
+            for (int tx = x; tx < x + w; tx += 64) {
+
+                int tw = Math.min(x + w - tx, 64);
+
+                int mode = zis.readU8();
+                boolean rle = (mode & 128) != 0;
+                int palSize = mode & 127;
+
+                readPixels(zis, converter, palette, palSize);
+
+                if (palSize == 1) {
+                    if ( valid)
+                        bitmapData.fillPixels(tx, ty, tw, th, palette[0]);
+                    continue;
+                }
+
+                if (zywrleLevel > 0 && !rle && palSize == 0) {
+                    readCoefficients(zis, converter, tw, th);
+                    synthesizer.synthesize(tilePixels, tw, th, zywrleLevel, converter.bytesPerCompressedPixel == 2);
+                } else {
+                    readTile(zis, converter, rle, palSize, tw, th);
+                }
+                if ( valid )
+                    copyTile(bitmapData, tilePixels, tx, ty, tw, th);
+            }
+
+            // Show the finished row of tiles while the next one is arriving.
+            if (rowDamage) {
+                bitmapData.updateBitmap(x, ty, w, th);
+                vncCanvas.reDraw(x, ty, w, th);
+                damagedTo = ty + th;
+            }
+        }
+
+        zis.reset();
+        socketStream.finish();
+
+        if (damagedTo < y + h) {
+            if ( valid )
+                bitmapData.updateBitmap(x, y, w, h);
+            vncCanvas.reDraw(x, y, w, h);
+        }
+    }
+
+    //
+    // Decode a ZRLE rectangle in two phases. The zlib stream is inflated in full on this
+    // thread as it arrives while recording where each tile starts, then the tiles are turned
+    // into pixels in parallel directly in bitmapPixels.
+    //
+    private void decodeParallel(int x, int y, int w, int h, int numTiles) throws Exception {
+        if (inflated == null)
+            inflated = new byte[ZlibInStream.defaultBufSize * 4];
+
+        int len = 0;
+        while (true) {
+            if (inflated.length - len < ZlibInStream.defaultBufSize)
+                inflated = Arrays.copyOf(inflated, inflated.length * 2);
+            int n = zis.readAvailable(inflated, len, inflated.length - len);
+            if (n == 0)
+                break;
+            len += n;
+        }
+        zis.reset();
+        socketStream.finish();
+
+        if (tileOffsets == null || tileOffsets.length < numTiles)
+            tileOffsets = new int[numTiles];
+
+        AbstractBitmapData bitmapData = decoder.bitmapData;
+        PixelConverter converter = decoder.pixelConverter;
+        int cpix = converter.bytesPerCompressedPixel;
+        ZrleTileDecoder.findTiles(inflated, len, w, h, cpix, tileOffsets);
+
+        if (bitmapData.validDraw(x, y, w, h)) {
+            DecoderPool.get().invoke(new ZrleTileDecoder.TileTask(inflated, tileOffsets, 0, numTiles,
+                    w, h, cpix, converter.lookupTable(), bitmapData.bitmapPixels, bitmapData.offset(x, y), bitmapData.bitmapwidth));
+            bitmapData.updateBitmap(x, y, w, h);
+        }
+
+        decoder.vncCanvas.reDraw(x, y, w, h);
+    }
+
+    //
+    // Read the pixels of a tile that is not solid into tilePixels, after its palette.
+    //
+    private void readTile(InStream is, PixelConverter converter, boolean rle, int palSize, int tw, int th)
+            throws Exception {
+        if (!rle) {
+            if (palSize == 0) {
+                readPixels(is, converter, tilePixels, tw * th);
+            } else {
+                readPackedPixels(is, tilePixels, tw, th, palette, palSize);
+            }
+        } else {
+            if (palSize == 0) {
+                readPlainRLEPixels(is, converter, tilePixels, tw * th);
+            } else {
+                readPackedRLEPixels(is, tilePixels, tw * th, palette);
+            }
+        }
+    }
+
+    //
+    // Read the wavelet coefficients of a ZYWRLE tile into tilePixels. They are sent as a ZRLE
+    // tile of their own, following the mode of the raw tile they stand for.
+    //
+    private void readCoefficients(InStream is, PixelConverter converter, int tw, int th) throws Exception {
+        int mode = is.readU8();
+        boolean rle = (mode & 128) != 0;
+        int palSize = mode & 127;
+
+        readPixels(is, converter, palette, palSize);
+
+        if (palSize == 1) {
+            Arrays.fill(tilePixels, 0, tw * th, palette[0]);
+        } else {
+            readTile(is, converter, rle, palSize, tw, th);
+        }
+    }
+
+    private int readPixel(InStream is, PixelConverter converter) throws Exception {
+        is.readBytes(pixelBuffer, 0, converter.bytesPerCompressedPixel);
+        return converter.compressedPixel(pixelBuffer, 0);
+    }
+
+    private void readPixels(InStream is, PixelConverter converter, int[] dst, int count) throws Exception {
+        final int l = count * converter.bytesPerCompressedPixel;
+        if (l > pixelBuffer.length) {
+            pixelBuffer = new byte[l];
+        }
+        is.readBytes(pixelBuffer, 0, l);
+        converter.convertCompressed(pixelBuffer, 0, dst, 0, count);
+    }
+
+    private static void readPackedPixels(InStream is, int[] dst, int tw, int th, int[] palette, int palSize)
+            throws Exception {
+
+        int bppp = ZrleTileDecoder.bitsPerPackedPixel(palSize);
+        int mask = ((1 << bppp) - 1) & 127;
+        int ptr = 0;
+
+        for (int i = 0; i < th; i++) {
+            int eol = ptr + tw;
+            int b = 0;
+            int nbits = 0;
+
+            while (ptr < eol) {
+                if (nbits == 0) {
+                    b = is.readU8();
+                    nbits = 8;
+                }
+                nbits -= bppp;
+                dst[ptr++] = palette[(b >> nbits) & mask];
+            }
+        }
+    }
+
+    private void readPlainRLEPixels(InStream is, PixelConverter converter, int[] dst, int end) throws Exception {
+        int ptr = 0;
+        while (ptr < end) {
+            int pix = readPixel(is, converter);
+            int len = 1;
+            int b;
+            do {
+                b = is.readU8();
+                len += b;
+            } while (b == 255);
+
+            if (!(len <= end - ptr))
+                throw new Exception("ZRLE decoder: assertion failed" + " (len <= end-ptr)");
+
+            Arrays.fill(dst, ptr, ptr + len, pix);
+            ptr += len;
+        }
+    }
+
+    private static void readPackedRLEPixels(InStream is, int[] dst, int end, int[] palette) throws Exception {
+
+        int ptr = 0;
+        while (ptr < end) {
+            int index = is.readU8();
+            int len = 1;
+            if ((index & 128) != 0) {
+                int b;
+                do {
+                    b = is.readU8();
+                    len += b;
+                } while (b == 255);
+
+                if (!(len <= end - ptr))
+                    throw new Exception("ZRLE decoder: assertion failed" + " (len <= end - ptr)");
+            }
+
+            Arrays.fill(dst, ptr, ptr + len, palette[index & 127]);
+            ptr += len;
+        }
+    }
+
+    //
+    // Copy a decoded tile into bitmapPixels. The caller updates the bitmap.
+    //
+    private static void copyTile(AbstractBitmapData bitmapData, int[] tilePixels, int x, int y, int w, int h) {
+        int offsetSrc = 0;
+        int[] destPixels = bitmapData.bitmapPixels;
+        for (int j = 0; j < h; j++) {
+            System.arraycopy(tilePixels, offsetSrc, destPixels, bitmapData.offset(x, y + j), w);
+            offsetSrc += w;
+        }
+    }
+}
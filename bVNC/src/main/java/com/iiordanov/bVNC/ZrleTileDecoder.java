@@ -0,0 +1,298 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Turns already inflated ZRLE tile data into pixels. It holds no per-connection state and
+ * does not depend on Android classes, so the tiles of one rectangle can be decoded from
+ * several threads at once once their start positions are known.
+ */
+class ZrleTileDecoder {
+    static final int TILE_SIZE = 64;
+
+    /**
+     * Decodes a range of the tiles of one rectangle, splitting the range while it is large.
+     * Tiles are numbered row by row from the top left of the rectangle.
+     */
+    static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        static final int TILES_PER_TASK = 4;
+
+        private final byte[] data;
+        private final int[] offsets;
+        private final int lo, hi;
+        private final int w, h, cpix;
+        private final int[] colorPalette;
+        private final int[] dst;
+        private final int dstOffset, stride;
+
+        /**
+         * @param data inflated ZRLE data of the rectangle
+         * @param offsets start of each tile in data, as found by findTiles()
+         * @param lo first tile to decode
+         * @param hi one past the last tile to decode
+         * @param w rectangle width
+         * @param h rectangle height
+         * @param cpix bytes per compressed pixel (1, 2 or 3)
+         * @param colorPalette lookup table for 8 and 16-bit color models, unused when cpix is 3
+         * @param dst destination pixels
+         * @param dstOffset offset of the rectangle's top left pixel in dst
+         * @param stride distance between rows in dst
+         */
+        TileTask(byte[] data, int[] offsets, int lo, int hi, int w, int h, int cpix,
+                 int[] colorPalette, int[] dst, int dstOffset, int stride) {
+            this.data = data;
+            this.offsets = offsets;
+            this.lo = lo;
+            this.hi = hi;
+            this.w = w;
+            this.h = h;
+            this.cpix = cpix;
+            this.colorPalette = colorPalette;
+            this.dst = dst;
+            this.dstOffset = dstOffset;
+            this.stride = stride;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > TILES_PER_TASK) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new TileTask(data, offsets, lo, mid, w, h, cpix, colorPalette, dst, dstOffset, stride),
+                          new TileTask(data, offsets, mid, hi, w, h, cpix, colorPalette, dst, dstOffset, stride));
+                return;
+            }
+
+            int[] palette = new int[128];
+            int tilesPerRow = (w + TILE_SIZE - 1) / TILE_SIZE;
+            for (int i = lo; i < hi; i++) {
+                int tx = (i % tilesPerRow) * TILE_SIZE;
+                int ty = (i / tilesPerRow) * TILE_SIZE;
+                int tw = Math.min(w - tx, TILE_SIZE);
+                int th = Math.min(h - ty, TILE_SIZE);
+                decodeTile(data, offsets[i], tw, th, cpix, colorPalette, palette,
+                        dst, dstOffset + ty * stride + tx, stride);
+            }
+        }
+    }
+
+    /**
+     * Finds where each tile of a rectangle starts.
+     * @param data inflated ZRLE data of the rectangle
+     * @param end end of valid data
+     * @param w rectangle width
+     * @param h rectangle height
+     * @param cpix bytes per compressed pixel (1, 2 or 3)
+     * @param offsets receives the start of each tile, numbered row by row
+     * @return the number of tiles
+     */
+    static int findTiles(byte[] data, int end, int w, int h, int cpix, int[] offsets) throws Exception {
+        int pos = 0;
+        int i = 0;
+        for (int ty = 0; ty < h; ty += TILE_SIZE) {
+            int th = Math.min(h - ty, TILE_SIZE);
+            for (int tx = 0; tx < w; tx += TILE_SIZE) {
+                int tw = Math.min(w - tx, TILE_SIZE);
+                offsets[i++] = pos;
+                pos = skipTile(data, pos, end, tw, th, cpix);
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Walks over one tile without producing any pixels.
+     * @param data inflated ZRLE data
+     * @param pos position of the tile's subencoding byte
+     * @param end end of valid data
+     * @param tw tile width
+     * @param th tile height
+     * @param cpix bytes per compressed pixel (1, 2 or 3)
+     * @return the position of the next tile
+     */
+    static int skipTile(byte[] data, int pos, int end, int tw, int th, int cpix) throws Exception {
+        if (pos >= end)
+            throw truncated();
+        int mode = data[pos++] & 0xFF;
+        boolean rle = (mode & 128) != 0;
+        int palSize = mode & 127;
+        pos += palSize * cpix;
+
+        if (palSize == 1) {
+            // Solid tile, nothing follows the palette.
+        } else if (!rle) {
+            if (palSize == 0) {
+                pos += tw * th * cpix;
+            } else {
+                pos += th * ((tw * bitsPerPackedPixel(palSize) + 7) / 8);
+            }
+        } else {
+            int count = tw * th;
+            while (count > 0) {
+                int len = 1;
+                if (palSize == 0) {
+                    pos += cpix;
+                } else {
+                    if (pos >= end)
+                        throw truncated();
+                    if ((data[pos++] & 128) == 0) {
+                        count--;
+                        continue;
+                    }
+                }
+                int b;
+                do {
+                    if (pos >= end)
+                        throw truncated();
+                    b = data[pos++] & 0xFF;
+                    len += b;
+                } while (b == 255);
+                count -= len;
+            }
+            if (count < 0)
+                throw new Exception("ZRLE decoder: assertion failed (len <= end - ptr)");
+        }
+
+        if (pos > end)
+            throw truncated();
+        return pos;
+    }
+
+    /**
+     * Decodes one tile that was previously validated with skipTile().
+     * @param data inflated ZRLE data
+     * @param pos position of the tile's subencoding byte
+     * @param tw tile width
+     * @param th tile height
+     * @param cpix bytes per compressed pixel (1, 2 or 3)
+     * @param colorPalette lookup table for 8 and 16-bit color models, unused when cpix is 3
+     * @param palette scratch space for at least 128 palette entries
+     * @param dst destination pixels
+     * @param dstOffset offset of the tile's top left pixel in dst
+     * @param stride distance between rows in dst
+     */
+    static void decodeTile(byte[] data, int pos, int tw, int th, int cpix, int[] colorPalette,
+                           int[] palette, int[] dst, int dstOffset, int stride) {
+        int mode = data[pos++] & 0xFF;
+        boolean rle = (mode & 128) != 0;
+        int palSize = mode & 127;
+        for (int i = 0; i < palSize; i++, pos += cpix) {
+            palette[i] = pixel(data, pos, cpix, colorPalette);
+        }
+
+        if (palSize == 1) {
+            int pix = palette[0];
+            for (int j = 0; j < th; j++, dstOffset += stride) {
+                Arrays.fill(dst, dstOffset, dstOffset + tw, pix);
+            }
+        } else if (!rle) {
+            if (palSize == 0) {
+                for (int j = 0; j < th; j++, dstOffset += stride) {
+                    for (int i = 0; i < tw; i++, pos += cpix) {
+                        dst[dstOffset + i] = pixel(data, pos, cpix, colorPalette);
+                    }
+                }
+            } else {
+                int bppp = bitsPerPackedPixel(palSize);
+                int mask = (1 << bppp) - 1;
+                for (int j = 0; j < th; j++, dstOffset += stride) {
+                    int b = 0;
+                    int nbits = 0;
+                    for (int i = 0; i < tw; i++) {
+                        if (nbits == 0) {
+                            b = data[pos++] & 0xFF;
+                            nbits = 8;
+                        }
+                        nbits -= bppp;
+                        dst[dstOffset + i] = palette[(b >> nbits) & mask & 127];
+                    }
+                }
+            }
+        } else {
+            int p = 0;
+            int count = tw * th;
+            while (p < count) {
+                int pix;
+                int len = 1;
+                boolean run = true;
+                if (palSize == 0) {
+                    pix = pixel(data, pos, cpix, colorPalette);
+                    pos += cpix;
+                } else {
+                    int index = data[pos++] & 0xFF;
+                    run = (index & 128) != 0;
+                    pix = palette[index & 127];
+                }
+                if (run) {
+                    int b;
+                    do {
+                        b = data[pos++] & 0xFF;
+                        len += b;
+                    } while (b == 255);
+                }
+                fillRun(dst, dstOffset, stride, tw, p, len, pix);
+                p += len;
+            }
+        }
+    }
+
+    /**
+     * Fills len pixels starting at linear position p within a tile of width tw,
+     * wrapping onto the following rows of dst as needed.
+     */
+    private static void fillRun(int[] dst, int dstOffset, int stride, int tw, int p, int len, int pix) {
+        int row = p / tw;
+        int col = p - row * tw;
+        int rowStart = dstOffset + row * stride;
+        while (len > 0) {
+            int n = Math.min(len, tw - col);
+            if (n == 1) {
+                dst[rowStart + col] = pix;
+            } else {
+                Arrays.fill(dst, rowStart + col, rowStart + col + n, pix);
+            }
+            len -= n;
+            col = 0;
+            rowStart += stride;
+        }
+    }
+
+    private static int pixel(byte[] data, int pos, int cpix, int[] colorPalette) {
+        if (cpix == 1) {
+            return colorPalette[data[pos] & 0xFF];
+        }
+        if (cpix == 2) {
+            return colorPalette[(data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8];
+        }
+        return (data[pos + 2] & 0xFF) << 16 | (data[pos + 1] & 0xFF) << 8 | (data[pos] & 0xFF);
+    }
+
+    static int bitsPerPackedPixel(int palSize) {
+        return (palSize > 16) ? 8 : ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1));
+    }
+
+    private static Exception truncated() {
+        return new Exception("ZRLE decoder: tile data truncated");
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+package com.iiordanov.bVNC;
+
+/**
+ * Decodes Zstd rectangles, which are Raw rectangles compressed with one zstd stream that
+ * lasts for the whole connection. Rows are decompressed and drawn as the data arrives.
+ */
+class ZstdDecoder implements EncodingDecoder {
+    private final Decoder decoder;
+    private JavaInStream socketStream;
+    private ZstdInStream zis;
+    private byte[] rowBuffer = new byte[128];
+
+    ZstdDecoder(Decoder decoder) {
+        this.decoder = decoder;
+    }
+
+    @Override
+    public void decode(RfbProto rfb, int x, int y, int w, int h) throws Exception {
+        AbstractBitmapData bitmapData = decoder.bitmapData;
+        PixelConverter converter = decoder.pixelConverter;
+        boolean valid = bitmapData.validDraw(x, y, w, h);
+
+        if (zis == null)
+            zis = new ZstdInStream();
+        if (socketStream == null)
+            socketStream = new JavaInStream();
+
+        int nBytes = rfb.is.readInt();
+        if (nBytes > 64 * 1024 * 1024)
+            throw new Exception("Zstd decoder: illegal compressed data size");
+
+        socketStream.setUnderlying(rfb.is, nBytes);
+        zis.setUnderlying(socketStream, nBytes);
+
+        int[] pixels = bitmapData.bitmapPixels;
+
+        final int l = w * converter.bytesPerPixel;
+        if (l > rowBuffer.length) {
+            rowBuffer = new byte[l];
+        }
+        byte[] row = rowBuffer;
+        for (int dy = y; dy < y + h; dy++) {
+            zis.readBytes(row, 0, l);
+            if ( ! valid)
+                continue;
+            converter.convert(row, 0, pixels, bitmapData.offset(x, dy), w);
+        }
+        zis.reset();
+        socketStream.finish();
+
+        if ( ! valid)
+            return;
+        bitmapData.updateBitmap(x, y, w, h);
+
+        decoder.vncCanvas.reDraw(x, y, w, h);
+    }
+}
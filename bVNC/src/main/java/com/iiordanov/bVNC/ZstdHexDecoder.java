@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+package com.iiordanov.bVNC;
+
+/**
+ * Decodes ZstdHex rectangles. These are Hextile rectangles in which a tile can also be sent
+ * compressed, either as raw pixels or as plain Hextile tile data. Each kind of tile has its
+ * own zstd stream that lasts for the whole connection.
+ */
+class ZstdHexDecoder extends HextileDecoder {
+    // Largest plain tile: background, foreground, count and 255 coloured subrectangles.
+    private static final int MAX_TILE_DATA = 2 * 4 + 1 + 255 * (4 + 2);
+
+    private JavaInStream socketStream;
+    private ZstdInStream rawStream;
+    private ZstdInStream encodedStream;
+    private byte[] tileBuf = new byte[MAX_TILE_DATA];
+
+    ZstdHexDecoder(Decoder decoder, RawDecoder raw) {
+        super(decoder, raw);
+    }
+
+    @Override
+    boolean decodeCompressedTile(RfbProto rfb, AbstractBitmapData bitmapData, int subencoding,
+                                 int tx, int ty, int tw, int th, boolean valid) throws Exception {
+        if ((subencoding & RfbProto.HextileZlibRaw) != 0) {
+            if (rawStream == null)
+                rawStream = new ZstdInStream();
+            ZstdInStream zis = setUnderlying(rfb, rawStream);
+
+            PixelConverter converter = decoder.pixelConverter;
+            final int l = tw * converter.bytesPerPixel;
+            if (l * th > tileBuf.length)
+                tileBuf = new byte[l * th];
+            zis.readBytes(tileBuf, 0, l * th);
+            finish(zis);
+
+            if ( valid ) {
+                int[] pixels = bitmapData.bitmapPixels;
+                for (int j = 0; j < th; j++) {
+                    converter.convert(tileBuf, j * l, pixels, bitmapData.offset(tx, ty + j), tw);
+                }
+            }
+            return true;
+        }
+
+        if ((subencoding & RfbProto.HextileZlibHex) != 0) {
+            if (encodedStream == null)
+                encodedStream = new ZstdInStream();
+            ZstdInStream zis = setUnderlying(rfb, encodedStream);
+
+            // The tile data has no length of its own, it lasts until the compressed data does.
+            int len = 0;
+            int n;
+            while ((n = zis.readAvailable(tileBuf, len, tileBuf.length - len)) > 0) {
+                len += n;
+            }
+            finish(zis);
+
+            decodeTileData(bitmapData, tileBuf, subencoding, tx, ty, tw, th, valid);
+            return true;
+        }
+
+        return false;
+    }
+
+    //
+    // Make the compressed data of the current tile the input of zis.
+    //
+    private ZstdInStream setUnderlying(RfbProto rfb, ZstdInStream zis) throws Exception {
+        if (socketStream == null)
+            socketStream = new JavaInStream();
+        int nBytes = rfb.is.readUnsignedShort();
+        socketStream.setUnderlying(rfb.is, nBytes);
+        zis.setUnderlying(socketStream, nBytes);
+        return zis;
+    }
+
+    private void finish(ZstdInStream zis) throws Exception {
+        zis.reset();
+        socketStream.finish();
+    }
+}
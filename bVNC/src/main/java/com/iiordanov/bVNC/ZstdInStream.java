@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+package com.iiordanov.bVNC;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+//
+// A ZstdInStream is the zstd counterpart of ZlibInStream, for the Zstd,
+// ZstdHex and ZSTDRLE encodings. One zstd context lives for the whole
+// connection, and the compressed bytes of each rectangle are pulled from
+// the underlying stream as they are needed.
+//
+
+public class ZstdInStream extends CompressedInStream {
+
+  static final int defaultBufSize = 16384;
+
+  public ZstdInStream(int bufSize_) {
+    bufSize = bufSize_;
+    b = new byte[bufSize];
+    ptr = end = ptrOffset = 0;
+  }
+
+  public ZstdInStream() { this(defaultBufSize); }
+
+  public void setUnderlying(InStream is, int bytesIn_) {
+    underlying = is;
+    bytesIn = bytesIn_;
+    ptr = end = 0;
+  }
+
+  public void reset() throws Exception {
+    ptr = end = 0;
+    if (underlying == null) return;
+
+    // The context only returns no output once the input is used up.
+    while (decompress() > 0) {
+      end = 0; // throw away any data
+    }
+    underlying = null;
+  }
+
+  public int pos() { return ptrOffset + ptr; }
+
+  public int readAvailable(byte[] data, int offset, int length) throws Exception {
+    if (ptr == end) {
+      ptrOffset += ptr;
+      ptr = end = 0;
+      if (underlying == null) return 0;
+      if (decompress() == 0) return 0;
+    }
+
+    int n = Math.min(length, end - ptr);
+    System.arraycopy(b, ptr, data, offset, n);
+    ptr += n;
+    return n;
+  }
+
+  protected int overrun(int itemSize, int nItems) throws Exception {
+    if (itemSize > bufSize)
+      throw new Exception("ZstdInStream overrun: max itemSize exceeded");
+    if (underlying == null)
+      throw new Exception("ZstdInStream overrun: no underlying stream");
+
+    if (end - ptr != 0)
+      System.arraycopy(b, ptr, b, 0, end - ptr);
+
+    ptrOffset += ptr;
+    end -= ptr;
+    ptr = 0;
+
+    while (end < itemSize) {
+      if (decompress() == 0)
+        throw new Exception("ZstdInStream overrun: compressed data exhausted");
+    }
+
+    if (itemSize * nItems > end)
+      nItems = end / itemSize;
+
+    return nItems;
+  }
+
+  // decompress() adds what the zstd context can produce to the buffer, and
+  // returns how many bytes that was. It returns 0 only once all the bytes
+  // given to setUnderlying() have been consumed.
+
+  private int decompress() throws Exception {
+    if (zstd == null) {
+      zstd = new ZstdInputStream(source);
+      // The input comes one rectangle at a time, so running out of it is not an error.
+      zstd.setContinuous(true);
+    }
+    int n = zstd.read(b, end, bufSize - end);
+    if (n <= 0) return 0;
+    end += n;
+    return n;
+  }
+
+  // Hands the zstd context the compressed bytes of the current rectangle.
+
+  private class Source extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+      if (bytesIn == 0) return -1;
+      try {
+        underlying.check(1);
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e.getMessage());
+      }
+      int n = Math.min(Math.min(length, underlying.getend() - underlying.getptr()), bytesIn);
+      System.arraycopy(underlying.getbuf(), underlying.getptr(), data, offset, n);
+      underlying.setptr(underlying.getptr() + n);
+      bytesIn -= n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return Math.min(underlying.getend() - underlying.getptr(), bytesIn);
+    }
+  }
+
+  private final Source source = new Source();
+  private ZstdInputStream zstd;
+  private InStream underlying;
+  private int bufSize;
+  private int ptrOffset;
+  private int bytesIn;
+}
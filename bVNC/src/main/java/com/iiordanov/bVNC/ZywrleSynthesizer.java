@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+package com.iiordanov.bVNC;
+
+/**
+ * Turns the wavelet coefficients of a ZYWRLE tile back into pixels. ZYWRLE sends the raw tiles
+ * of ZRLE as a piecewise-linear Haar wavelet transform of their YUV values, with the high
+ * frequencies quantized according to the quality level. This follows zywrletemplate.c of
+ * LibVNCServer.
+ *
+ * The scratch buffer is kept between tiles, so synthesizing a tile allocates nothing.
+ */
+class ZywrleSynthesizer {
+    // The wavelet coefficients of a tile, one int per pixel with U, Y and V in its three low
+    // bytes, in that order.
+    private final int[] coeffs = new int[64 * 64];
+
+    /**
+     * @param quality the JPEG quality level last sent to the server, or -1 if none was
+     * @return the number of wavelet levels the server uses for quality
+     */
+    static int level(int quality) {
+        if (quality < 0)
+            return 1;
+        else if (quality < 3)
+            return 3;
+        else if (quality < 6)
+            return 2;
+        else
+            return 1;
+    }
+
+    /**
+     * Replaces the coefficients of a tile with its pixels.
+     * @param pixels the tile as it was decoded, w * h pixels of coefficients in ARGB form
+     * @param rgb565 true if the pixels were sent as 16-bit RGB565 rather than 24-bit color
+     */
+    void synthesize(int[] pixels, int w, int h, int level, boolean rgb565) {
+        // Only the part of the tile that is a multiple of 1 << level wide and high is
+        // transformed, the pixels of the remaining strips are sent as they are.
+        int aw = w & -(1 << level);
+        int ah = h & -(1 << level);
+        if (aw == 0 || ah == 0)
+            return;
+
+        // The coefficients of each level come highest frequencies first, then the lowest
+        // frequencies of the last level. They were sent as pixels, so keep only the bits
+        // the pixel format has room for.
+        int mask = rgb565 ? 0xF8FCF8 : 0xFFFFFF;
+        int[] buf = coeffs;
+        int p = 0;
+        for (int l = 0; l < level; l++) {
+            p = unpack(pixels, p, mask, buf, 3, l, aw, ah);
+            p = unpack(pixels, p, mask, buf, 2, l, aw, ah);
+            p = unpack(pixels, p, mask, buf, 1, l, aw, ah);
+            if (l == level - 1)
+                p = unpack(pixels, p, mask, buf, 0, l, aw, ah);
+        }
+        // Keep the untransformed pixels after the coefficients, they are overwritten below.
+        int unaligned = w * h - p;
+        System.arraycopy(pixels, p, buf, aw * ah, unaligned);
+
+        for (int l = level - 1; l >= 0; l--) {
+            for (int x = 0; x < aw; x += 1 << l)
+                waveletLevel(buf, x, ah, l, aw);
+            for (int y = 0; y < ah; y += 1 << l)
+                waveletLevel(buf, y * aw, aw, l, 1);
+        }
+
+        for (int y = 0; y < ah; y++) {
+            for (int x = 0, i = y * aw, o = y * w; x < aw; x++, i++, o++) {
+                pixels[o] = yuvToPixel(buf[i], rgb565);
+            }
+        }
+
+        // The right strip, the bottom strip and the corner, in that order.
+        p = aw * ah;
+        p = copyStrip(buf, p, pixels, w, aw, w, 0, ah);
+        p = copyStrip(buf, p, pixels, w, 0, aw, ah, h);
+        copyStrip(buf, p, pixels, w, aw, w, ah, h);
+    }
+
+    //
+    // Read the coefficients of one band of one level into place, band 1 being the horizontal
+    // high frequencies, band 2 the vertical ones, band 3 both and band 0 neither.
+    //
+    private static int unpack(int[] pixels, int p, int mask, int[] buf, int band, int l, int aw, int ah) {
+        int s = 2 << l;
+        int x0 = (band & 1) != 0 ? s >> 1 : 0;
+        int y0 = (band & 2) != 0 ? s >> 1 : 0;
+        for (int y = y0; y < ah; y += s) {
+            for (int i = y * aw + x0, end = y * aw + aw; i < end; i += s) {
+                buf[i] = pixels[p++] & mask;
+            }
+        }
+        return p;
+    }
+
+    //
+    // Transform size / 2^(l + 1) pairs of coefficients 2^l apart, starting at buf[start] and
+    // skip ints from one coefficient to the next. The transform is its own inverse.
+    //
+    private static void waveletLevel(int[] buf, int start, int size, int l, int skip) {
+        int step = (2 << l) * skip;
+        int ofs = (1 << l) * skip;
+        for (int i = start, end = start + (size >> (l + 1)) * step; i < end; i += step) {
+            harr(buf, i, i + ofs);
+        }
+    }
+
+    //
+    // Piecewise-linear Haar transform of the U, Y and V bytes of two coefficients.
+    //
+    private static void harr(int[] buf, int i0, int i1) {
+        int a = buf[i0], b = buf[i1];
+        int low = 0, high = 0;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int x0 = (byte)(a >> shift), x1 = (byte)(b >> shift);
+            int orgX0 = x0, orgX1 = x1;
+            if (((x0 ^ x1) & 0x80) != 0) {
+                // Different signs.
+                x1 += x0;
+                if (((x1 ^ orgX1) & 0x80) == 0) {
+                    x0 -= x1;
+                }
+            } else {
+                // Same sign.
+                x0 -= x1;
+                if (((x0 ^ orgX0) & 0x80) == 0) {
+                    x1 += x0;
+                }
+            }
+            low |= (x1 & 0xFF) << shift;
+            high |= (x0 & 0xFF) << shift;
+        }
+        buf[i0] = low;
+        buf[i1] = high;
+    }
+
+    private static int yuvToPixel(int c, boolean rgb565) {
+        int v = (byte)(c >> 16) << 1;
+        int y = (byte)(c >> 8) + 128;
+        int u = (byte)c << 1;
+        int g = y - ((u + v) >> 2);
+        int b = clamp(u + g);
+        int r = clamp(v + g);
+        g = clamp(g);
+        if (rgb565)
+            return PixelConverter.Rgb565.color((r & 0xF8) << 8 | (g & 0xFC) << 3 | b >> 3);
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    private static int clamp(int x) {
+        return x < 0 ? 0 : (x > 255 ? 255 : x);
+    }
+
+    //
+    // Copy untransformed pixels from buf[p] into the area [x0, x1) x [y0, y1) of the tile.
+    //
+    private static int copyStrip(int[] buf, int p, int[] pixels, int w, int x0, int x1, int y0, int y1) {
+        int n = x1 - x0;
+        if (n <= 0)
+            return p;
+        for (int y = y0; y < y1; y++, p += n) {
+            System.arraycopy(buf, p, pixels, y * w + x0, n);
+        }
+        return p;
+    }
+}
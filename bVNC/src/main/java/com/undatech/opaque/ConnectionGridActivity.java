@@ -177,6 +177,13 @@ public class ConnectionGridActivity extends FragmentActivity implements GetTextF
             ConnectionBean conn = (ConnectionBean) connectionLoader.getConnectionsById().get(runtimeId);
             intent.putExtra(Utils.getConnectionString(appContext), conn.Gen_getValues());
         }
+        if (Utils.querySharedPreferenceBoolean(this, Constants.multipleSessionsTag)) {
+            // Each session gets its own task, so the ones already open stay connected.
+            if (Utils.isOpaque(getPackageName())) {
+                intent.setClass(ConnectionGridActivity.this, GeneralUtils.getClassByName("com.iiordanov.bVNC.RemoteCanvasSessionActivity"));
+            }
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_DOCUMENT | Intent.FLAG_ACTIVITY_MULTIPLE_TASK);
+        }
         startActivity(intent);
 
     }
@@ -20,7 +20,6 @@
 
 package com.undatech.opaque;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -28,10 +27,7 @@ import java.util.Map;
 import android.app.Activity;
 import android.content.Context;
 import android.database.DataSetObserver;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.support.v7.widget.AppCompatImageView;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -40,6 +36,7 @@ import android.widget.GridView;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.undatech.opaque.util.Thumbnails;
 import com.undatech.remoteClientUi.R;
 
 public class LabeledImageApapter extends BaseAdapter {
@@ -98,14 +95,8 @@ public class LabeledImageApapter extends BaseAdapter {
         }
         String screenshotFilePath = context.getFilesDir() + "/" + c.getScreenshotFilename();
         AppCompatImageView imageView = gridView.findViewById(R.id.grid_item_image);
-        if (new File(screenshotFilePath).exists()) {
-            Log.d(TAG, "Setting screenshot from file " + screenshotFilePath);
-            Bitmap gridImage = BitmapFactory.decodeFile(screenshotFilePath);
-            imageView.setImageBitmap(gridImage);
-        } else {
-            imageView.setImageResource(R.drawable.ic_screen_black_48dp);
-            imageView.setScaleType(ImageView.ScaleType.CENTER_INSIDE);
-        }
+        imageView.setScaleType(ImageView.ScaleType.CENTER_INSIDE);
+        Thumbnails.load(imageView, screenshotFilePath, height, R.drawable.ic_screen_black_48dp);
 
         // This ID in a hidden TextView is used to send the right connection for editing or connection establishment
         // when the item is long-tapped or tapped respectively.
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.undatech.opaque.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes and reads the screenshots shown for each connection, keeping the encoding and
+ * decoding off the UI thread. Decoded screenshots are subsampled to the size they are shown at
+ * and kept in a memory cache, so scrolling through the connections does not decode them again.
+ *
+ * Writes and reads run on one background thread, so a screenshot requested after a save
+ * is always read from the new file.
+ */
+public class Thumbnails {
+    private static String TAG = "Thumbnails";
+
+    private static final int JPEG_QUALITY = 85;
+
+    private static final LruCache<String, Bitmap> cache =
+            new LruCache<String, Bitmap>((int)Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE)) {
+                @Override
+                protected int sizeOf(String path, Bitmap bitmap) {
+                    return bitmap.getByteCount();
+                }
+            };
+
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Compresses a screenshot into path in the background and recycles it afterwards.
+     * The file is replaced at once, so readers never see it half written.
+     */
+    public static void save(final Bitmap screenshot, final String path) {
+        cache.remove(path);
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(path);
+                File tmp = new File(path + ".tmp");
+                try {
+                    long start = System.nanoTime();
+                    FileOutputStream out = new FileOutputStream(tmp);
+                    try {
+                        screenshot.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                    } finally {
+                        out.close();
+                    }
+                    if (!tmp.renameTo(file)) {
+                        Log.e(TAG, "Could not move screenshot to " + path);
+                        tmp.delete();
+                    }
+                    Log.d(TAG, "Saved " + screenshot.getWidth() + "x" + screenshot.getHeight() +
+                            " screenshot in " + (System.nanoTime() - start) / 1000000 + "ms");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    tmp.delete();
+                } finally {
+                    screenshot.recycle();
+                    // A read queued before this save may have cached the old screenshot.
+                    cache.remove(path);
+                }
+            }
+        });
+    }
+
+    /**
+     * Shows the screenshot at path in view. The view shows placeholder until the screenshot
+     * is decoded, and keeps showing it if there is no screenshot.
+     * @param reqSize the size the screenshot is shown at, or 0 if not known
+     */
+    public static void load(final ImageView view, final String path, final int reqSize, int placeholder) {
+        view.setTag(path);
+        Bitmap bitmap = cache.get(path);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+
+        view.setImageResource(placeholder);
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap cached = cache.get(path);
+                final Bitmap bitmap = cached != null ? cached : decode(path, reqSize);
+                if (bitmap == null) {
+                    return;
+                }
+                cache.put(path, bitmap);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The view may have been reused for another connection meanwhile.
+                        if (path.equals(view.getTag())) {
+                            view.setImageBitmap(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Decodes the screenshot at path, skipping as many pixels as possible while keeping it
+     * at least reqSize wide or high.
+     * @return null if there is no screenshot at path
+     */
+    private static Bitmap decode(String path, int reqSize) {
+        if (!new File(path).exists()) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        int sampleSize = 1;
+        if (reqSize > 0) {
+            while (options.outWidth / (sampleSize * 2) >= reqSize ||
+                    options.outHeight / (sampleSize * 2) >= reqSize) {
+                sampleSize *= 2;
+            }
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeFile(path, options);
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Generates repeatable screen contents and encodes them the way a VNC server would, so the
+ * benchmarks always decode the same bytes.
+ */
+class Corpus {
+    static final String DESKTOP = "desktop";
+    static final String PHOTO = "photo";
+
+    /**
+     * Creates a w x h screen of 24-bit pixels.
+     * @param kind DESKTOP for flat windows and text, PHOTO for smooth, noisy content
+     */
+    static int[] screen(String kind, int w, int h) {
+        Random random = new Random(42);
+        int[] pixels = new int[w * h];
+        if (PHOTO.equals(kind)) {
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int r = (x * 255 / w + random.nextInt(8)) & 0xFF;
+                    int g = (y * 255 / h + random.nextInt(8)) & 0xFF;
+                    int b = ((x + y) * 255 / (w + h) + random.nextInt(8)) & 0xFF;
+                    pixels[y * w + x] = r << 16 | g << 8 | b;
+                }
+            }
+            return pixels;
+        }
+
+        Arrays.fill(pixels, 0x3a6ea5);
+        for (int n = 0; n < 12; n++) {
+            int ww = w / 4 + random.nextInt(w / 3);
+            int wh = h / 4 + random.nextInt(h / 3);
+            int wx = random.nextInt(w - ww);
+            int wy = random.nextInt(h - wh);
+            fill(pixels, w, wx, wy, ww, wh, 0x808080);
+            fill(pixels, w, wx + 1, wy + 1, ww - 2, 24, 0x000080 + n * 8);
+            fill(pixels, w, wx + 1, wy + 25, ww - 2, wh - 26, 0xffffff);
+            // Lines of "text": short runs of dark pixels on the white background.
+            for (int ty = wy + 30; ty + 10 < wy + wh; ty += 14) {
+                for (int tx = wx + 4; tx + 8 < wx + ww; tx += 7) {
+                    if (random.nextInt(6) == 0)
+                        continue;
+                    for (int gy = 0; gy < 9; gy++) {
+                        for (int gx = 0; gx < 6; gx++) {
+                            if (random.nextInt(3) == 0)
+                                pixels[(ty + gy) * w + tx + gx] = 0x202020;
+                        }
+                    }
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private static void fill(int[] pixels, int stride, int x, int y, int w, int h, int color) {
+        for (int j = y; j < y + h; j++) {
+            Arrays.fill(pixels, j * stride + x, j * stride + x + w, color);
+        }
+    }
+
+    /**
+     * Encodes a screen as the uncompressed tile data of one full-screen ZRLE rectangle,
+     * using 3-byte compressed pixels. Each tile gets the subencoding a typical server would
+     * choose: solid, packed palette, palette RLE or plain RLE.
+     */
+    static byte[] zrleTiles(int[] pixels, int w, int h) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int ty = 0; ty < h; ty += ZrleTileDecoder.TILE_SIZE) {
+            int th = Math.min(h - ty, ZrleTileDecoder.TILE_SIZE);
+            for (int tx = 0; tx < w; tx += ZrleTileDecoder.TILE_SIZE) {
+                int tw = Math.min(w - tx, ZrleTileDecoder.TILE_SIZE);
+                zrleTile(out, pixels, w, tx, ty, tw, th);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void zrleTile(ByteArrayOutputStream out, int[] pixels, int stride, int tx, int ty, int tw, int th) {
+        Map<Integer, Integer> palette = new LinkedHashMap<Integer, Integer>();
+        int runs = 0;
+        int prev = -1;
+        for (int j = ty; j < ty + th; j++) {
+            for (int i = tx; i < tx + tw; i++) {
+                int pix = pixels[j * stride + i];
+                if (palette.size() <= 127 && !palette.containsKey(pix))
+                    palette.put(pix, palette.size());
+                if (pix != prev)
+                    runs++;
+                prev = pix;
+            }
+        }
+
+        int colors = palette.size();
+        if (colors == 1) {
+            out.write(1);
+            writePixel(out, prev);
+            return;
+        }
+
+        if (colors <= 16 && runs > tw * th / 2) {
+            // Packed palette, each row starts on a byte boundary.
+            out.write(colors);
+            for (int pix : palette.keySet())
+                writePixel(out, pix);
+            int bppp = ZrleTileDecoder.bitsPerPackedPixel(colors);
+            for (int j = ty; j < ty + th; j++) {
+                int b = 0;
+                int nbits = 0;
+                for (int i = tx; i < tx + tw; i++) {
+                    b = b << bppp | palette.get(pixels[j * stride + i]);
+                    nbits += bppp;
+                    if (nbits == 8) {
+                        out.write(b);
+                        b = 0;
+                        nbits = 0;
+                    }
+                }
+                if (nbits > 0)
+                    out.write(b << (8 - nbits));
+            }
+            return;
+        }
+
+        boolean usePalette = colors <= 127;
+        out.write(usePalette ? 128 | colors : 128);
+        if (usePalette) {
+            for (int pix : palette.keySet())
+                writePixel(out, pix);
+        }
+        int count = tw * th;
+        int p = 0;
+        while (p < count) {
+            int pix = pixels[(ty + p / tw) * stride + tx + p % tw];
+            int len = 1;
+            while (p + len < count && pixels[(ty + (p + len) / tw) * stride + tx + (p + len) % tw] == pix)
+                len++;
+            if (usePalette) {
+                int index = palette.get(pix);
+                if (len == 1) {
+                    out.write(index);
+                } else {
+                    out.write(128 | index);
+                    writeRunLength(out, len);
+                }
+            } else {
+                writePixel(out, pix);
+                writeRunLength(out, len);
+            }
+            p += len;
+        }
+    }
+
+    private static void writePixel(ByteArrayOutputStream out, int pix) {
+        out.write(pix & 0xFF);
+        out.write(pix >> 8 & 0xFF);
+        out.write(pix >> 16 & 0xFF);
+    }
+
+    private static void writeRunLength(ByteArrayOutputStream out, int len) {
+        len -= 1;
+        while (len >= 255) {
+            out.write(255);
+            len -= 255;
+        }
+        out.write(len);
+    }
+
+    /**
+     * Compresses data the way the server does for each rectangle, ending with a sync flush.
+     */
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[65536];
+        int n;
+        do {
+            n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            out.write(buf, 0, n);
+        } while (n == buf.length);
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Turns 24-bit pixels into the R, G, B byte order Tight uses for true color data.
+     */
+    static byte[] tightRgb(int[] pixels, int offset, int stride, int w, int h) {
+        byte[] rgb = new byte[w * h * 3];
+        int i = 0;
+        for (int j = 0; j < h; j++) {
+            for (int x = 0; x < w; x++) {
+                int pix = pixels[offset + j * stride + x];
+                rgb[i++] = (byte) (pix >> 16);
+                rgb[i++] = (byte) (pix >> 8);
+                rgb[i++] = (byte) pix;
+            }
+        }
+        return rgb;
+    }
+
+    /**
+     * Turns 24-bit pixels into little endian pixels of the given size: 32-bit true color,
+     * 16-bit RGB565 or 8-bit BGR233, the formats of the color models.
+     */
+    static byte[] pixelBytes(int[] pixels, int bytesPerPixel) {
+        byte[] out = new byte[pixels.length * bytesPerPixel];
+        int i = 0;
+        for (int pix : pixels) {
+            int r = pix >> 16 & 0xFF;
+            int g = pix >> 8 & 0xFF;
+            int b = pix & 0xFF;
+            if (bytesPerPixel == 4) {
+                out[i++] = (byte) b;
+                out[i++] = (byte) g;
+                out[i++] = (byte) r;
+                out[i++] = 0;
+            } else if (bytesPerPixel == 2) {
+                int v = (r >> 3) << 11 | (g >> 2) << 5 | b >> 3;
+                out[i++] = (byte) v;
+                out[i++] = (byte) (v >> 8);
+            } else {
+                out[i++] = (byte) ((b >> 6) << 6 | (g >> 5) << 3 | r >> 5);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Turns 24-bit pixels into the three byte compressed pixels of ZRLE, blue first.
+     */
+    static byte[] compressedPixels(int[] pixels) {
+        byte[] out = new byte[pixels.length * 3];
+        int i = 0;
+        for (int pix : pixels) {
+            out[i++] = (byte) pix;
+            out[i++] = (byte) (pix >> 8);
+            out[i++] = (byte) (pix >> 16);
+        }
+        return out;
+    }
+
+    /**
+     * Encodes pixels with the Tight palette filter, with the 256 BGR233 colors as the palette.
+     */
+    static byte[] tightPalette(int[] pixels) {
+        return pixelBytes(pixels, 1);
+    }
+
+    /**
+     * @return the colors the indices written by tightPalette() stand for
+     */
+    static int[] tightPaletteColors() {
+        int[] palette = new int[256];
+        for (int v = 0; v < palette.length; v++) {
+            palette[v] = (v & 7) << 21 | (v >> 3 & 7) << 13 | (v >> 6) << 6;
+        }
+        return palette;
+    }
+
+    /**
+     * Encodes pixels with the Tight palette filter for two colors, one bit per pixel with each
+     * row starting on a byte boundary. Dark pixels get color 1.
+     */
+    static byte[] tightMono(int[] pixels, int w, int h) {
+        int rowBytes = (w + 7) / 8;
+        byte[] out = new byte[rowBytes * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int pix = pixels[y * w + x];
+                int luma = ((pix >> 16 & 0xFF) + (pix >> 8 & 0xFF) + (pix & 0xFF)) / 3;
+                if (luma < 128)
+                    out[y * rowBytes + x / 8] |= 0x80 >> (x % 8);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Encodes pixels with the Tight gradient filter: each component is sent as its difference
+     * from the one predicted from its left, upper and upper left neighbours.
+     */
+    static byte[] tightGradient(int[] pixels, int w, int h) {
+        byte[] out = new byte[w * h * 3];
+        int i = 0;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int left = x > 0 ? pixels[y * w + x - 1] >> shift & 0xFF : 0;
+                    int up = y > 0 ? pixels[(y - 1) * w + x] >> shift & 0xFF : 0;
+                    int upLeft = x > 0 && y > 0 ? pixels[(y - 1) * w + x - 1] >> shift & 0xFF : 0;
+                    int est = Math.max(0, Math.min(0xFF, left + up - upLeft));
+                    out[i++] = (byte) ((pixels[y * w + x] >> shift & 0xFF) - est);
+                }
+            }
+        }
+        return out;
+    }
+}
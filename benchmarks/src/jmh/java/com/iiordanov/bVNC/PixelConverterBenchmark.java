@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Converts a full screen of pixels in the format of each color model into color ints, row by
+ * row as the decoders do. Scores are in nanoseconds per pixel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PixelConverterBenchmark {
+    static final int W = 1920;
+    static final int H = 1080;
+    static final int PIXELS = W * H;
+
+    @Param({Corpus.DESKTOP, Corpus.PHOTO})
+    public String content;
+
+    @Param({"32", "16", "8"})
+    public int bitsPerPixel;
+
+    private PixelConverter converter;
+    private byte[] pixelData;
+    private byte[] compressedData;
+    private byte[] tightData;
+    private int[] pixels;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] screen = Corpus.screen(content, W, H);
+        if (bitsPerPixel == 32) {
+            converter = new PixelConverter.TrueColor();
+            compressedData = Corpus.compressedPixels(screen);
+            tightData = Corpus.tightRgb(screen, 0, W, W, H);
+        } else if (bitsPerPixel == 16) {
+            converter = new PixelConverter.Rgb565();
+        } else {
+            converter = new PixelConverter.Indexed(ColorModel256.colors);
+        }
+        pixelData = Corpus.pixelBytes(screen, bitsPerPixel / 8);
+        if (compressedData == null) {
+            // Below 32 bits, compressed and Tight pixels are the pixels themselves.
+            compressedData = pixelData;
+            tightData = pixelData;
+        }
+        pixels = new int[PIXELS];
+    }
+
+    /**
+     * Pixels as sent in Raw, Zlib, RRE and Hextile data.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public int[] convert() {
+        int l = W * converter.bytesPerPixel;
+        for (int y = 0; y < H; y++) {
+            converter.convert(pixelData, y * l, pixels, y * W, W);
+        }
+        return pixels;
+    }
+
+    /**
+     * Compressed pixels as sent in ZRLE data.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public int[] convertCompressed() {
+        int l = W * converter.bytesPerCompressedPixel;
+        for (int y = 0; y < H; y++) {
+            converter.convertCompressed(compressedData, y * l, pixels, y * W, W);
+        }
+        return pixels;
+    }
+
+    /**
+     * Pixels as sent in Tight data that went through the copy filter.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public int[] convertTight() {
+        int l = W * converter.bytesPerTightPixel;
+        for (int y = 0; y < H; y++) {
+            converter.convertTight(tightData, y * l, pixels, y * W, W);
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads a session recorded by SessionRecorder, so the benchmarks can decode real traffic. The
+ * server messages are stepped through without decoding them, and the rectangles of each
+ * framebuffer update are kept with their data as it came from the server.
+ */
+class Recording {
+    static final String FBS_VERSION = "FBS 001.000\n";
+
+    static final int ENCODING_RAW = 0;
+    static final int ENCODING_COPY_RECT = 1;
+    static final int ENCODING_RRE = 2;
+    static final int ENCODING_CORRE = 4;
+    static final int ENCODING_HEXTILE = 5;
+    static final int ENCODING_ZLIB = 6;
+    static final int ENCODING_TIGHT = 7;
+    static final int ENCODING_ZRLE = 16;
+    static final int ENCODING_ZYWRLE = 17;
+    static final int ENCODING_ZSTD = 25;
+    static final int ENCODING_TIGHT_ZSTD = 26;
+    static final int ENCODING_ZSTDRLE = 28;
+    static final int ENCODING_X_CURSOR = -240;
+    static final int ENCODING_RICH_CURSOR = -239;
+    static final int ENCODING_POINTER_POS = -232;
+    static final int ENCODING_LAST_RECT = -224;
+    static final int ENCODING_NEW_FB_SIZE = -223;
+    static final int ENCODING_EXTENDED_DESKTOP_SIZE = -308;
+
+    static final int TIGHT_MIN_TO_COMPRESS = 12;
+    static final int TIGHT_EXPLICIT_FILTER = 0x04;
+    static final int TIGHT_FILL = 0x08;
+    static final int TIGHT_JPEG = 0x09;
+    static final int TIGHT_MAX_SUBENCODING = 0x09;
+    static final int TIGHT_FILTER_COPY = 0x00;
+    static final int TIGHT_FILTER_PALETTE = 0x01;
+    static final int TIGHT_FILTER_GRADIENT = 0x02;
+
+    /**
+     * A rectangle of a framebuffer update, with everything the server sent after its header.
+     */
+    static class Rect {
+        final int encoding;
+        final int x, y, w, h;
+        final byte[] data;
+
+        Rect(int encoding, int x, int y, int w, int h, byte[] data) {
+            this.encoding = encoding;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.data = data;
+        }
+    }
+
+    int width;
+    int height;
+    final int bitsPerPixel;
+    final int depth;
+    final boolean trueColor;
+    final List<Rect> rects = new ArrayList<Rect>();
+
+    private final byte[] stream;
+    private int pos;
+
+    private Recording(byte[] stream) throws IOException {
+        this.stream = stream;
+        // The RFB 3.3 handshake without authentication the recorder starts with.
+        pos = 12;
+        if (readInt() != 1)
+            throw new IOException("Recording does not start with an RFB 3.3 handshake");
+        width = readU16();
+        height = readU16();
+        bitsPerPixel = readU8();
+        depth = readU8();
+        pos++;
+        trueColor = readU8() != 0;
+        pos += 12;
+        skip(readInt());
+        readMessages();
+    }
+
+    /**
+     * Reads the server messages of a session file written by SessionRecorder.
+     * @throws IOException if the file is not a recording, or holds data that cannot be stepped over
+     */
+    static Recording load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] version = new byte[FBS_VERSION.length()];
+            in.readFully(version);
+            if (!FBS_VERSION.equals(new String(version, "US-ASCII")))
+                throw new IOException("Not a session recording: " + file);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] block = new byte[65536];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length < 0)
+                        throw new IOException("Corrupt session recording, block length " + length);
+                    int padded = (length + 3) & ~3;
+                    if (block.length < padded)
+                        block = new byte[padded];
+                    in.readFully(block, 0, padded);
+                    in.readInt();
+                } catch (EOFException e) {
+                    // A recording that was cut short ends with a partial block.
+                    break;
+                }
+                out.write(block, 0, length);
+            }
+            return new Recording(out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the rectangles sent with the given encoding, in the order they came
+     */
+    List<Rect> rects(int encoding) {
+        List<Rect> result = new ArrayList<Rect>();
+        for (Rect rect : rects) {
+            if (rect.encoding == encoding)
+                result.add(rect);
+        }
+        return result;
+    }
+
+    /**
+     * @return bytes per pixel of Tight data that went through the copy filter
+     */
+    int bytesPerTightPixel() {
+        return bitsPerPixel == 32 && depth == 24 && trueColor ? 3 : bitsPerPixel / 8;
+    }
+
+    /**
+     * Steps through the messages up to the end of the recording, leaving out a rectangle the
+     * recording stopped in the middle of.
+     */
+    private void readMessages() throws IOException {
+        try {
+            while (pos < stream.length) {
+                readMessage();
+            }
+        } catch (EOFException e) {
+            // The recording stopped in the middle of a message.
+        }
+    }
+
+    private void readMessage() throws IOException {
+        int type = readU8();
+        switch (type) {
+        case 0:
+            readFramebufferUpdate();
+            break;
+        case 1:
+            // SetColourMapEntries
+            pos += 3;
+            skip(readU16() * 6);
+            break;
+        case 2:
+            // Bell
+            break;
+        case 3:
+            // ServerCutText
+            pos += 3;
+            skip(readInt());
+            break;
+        case 150:
+            // EndOfContinuousUpdates
+            break;
+        case 248:
+            // ServerFence
+            pos += 7;
+            skip(readU8());
+            break;
+        default:
+            throw new IOException("Cannot step over server message " + type);
+        }
+    }
+
+    private void readFramebufferUpdate() throws IOException {
+        pos++;
+        int count = readU16();
+        for (int i = 0; i < count && pos < stream.length; i++) {
+            int x = readU16();
+            int y = readU16();
+            int w = readU16();
+            int h = readU16();
+            int encoding = readInt();
+            if (encoding == ENCODING_LAST_RECT)
+                break;
+            int start = pos;
+            skipRect(encoding, w, h);
+            if (pos > stream.length)
+                throw new EOFException();
+            rects.add(new Rect(encoding, x, y, w, h, Arrays.copyOfRange(stream, start, pos)));
+            if (encoding == ENCODING_NEW_FB_SIZE || encoding == ENCODING_EXTENDED_DESKTOP_SIZE) {
+                width = w;
+                height = h;
+            }
+        }
+    }
+
+    private void skipRect(int encoding, int w, int h) throws IOException {
+        int bpp = bitsPerPixel / 8;
+        switch (encoding) {
+        case ENCODING_RAW:
+            pos += w * h * bpp;
+            break;
+        case ENCODING_COPY_RECT:
+            pos += 4;
+            break;
+        case ENCODING_RRE:
+            skip(readInt() * (bpp + 8) + bpp);
+            break;
+        case ENCODING_CORRE:
+            skip(readInt() * (bpp + 4) + bpp);
+            break;
+        case ENCODING_HEXTILE:
+            skipHextile(w, h, bpp);
+            break;
+        case ENCODING_ZLIB:
+        case ENCODING_ZRLE:
+        case ENCODING_ZYWRLE:
+        case ENCODING_ZSTD:
+        case ENCODING_ZSTDRLE:
+            skip(readInt());
+            break;
+        case ENCODING_TIGHT:
+        case ENCODING_TIGHT_ZSTD:
+            skipTight(w, h);
+            break;
+        case ENCODING_RICH_CURSOR:
+            pos += w * h * bpp + (w + 7) / 8 * h;
+            break;
+        case ENCODING_X_CURSOR:
+            if (w * h > 0)
+                pos += 6 + 2 * ((w + 7) / 8) * h;
+            break;
+        case ENCODING_POINTER_POS:
+        case ENCODING_NEW_FB_SIZE:
+            break;
+        case ENCODING_EXTENDED_DESKTOP_SIZE:
+            skip(readU8() * 16 + 3);
+            break;
+        default:
+            throw new IOException("Cannot step over encoding " + encoding);
+        }
+    }
+
+    private void skipHextile(int w, int h, int bpp) throws EOFException {
+        for (int ty = 0; ty < h; ty += 16) {
+            int th = Math.min(16, h - ty);
+            for (int tx = 0; tx < w; tx += 16) {
+                int tw = Math.min(16, w - tx);
+                int subencoding = readU8();
+                if ((subencoding & 1) != 0) {
+                    pos += tw * th * bpp;
+                    continue;
+                }
+                if ((subencoding & 2) != 0)
+                    pos += bpp;
+                if ((subencoding & 4) != 0)
+                    pos += bpp;
+                if ((subencoding & 8) != 0) {
+                    int subrects = readU8();
+                    pos += subrects * ((subencoding & 16) != 0 ? bpp + 2 : 2);
+                }
+            }
+        }
+    }
+
+    private void skipTight(int w, int h) throws IOException {
+        int tpix = bytesPerTightPixel();
+        int compControl = readU8() >> 4;
+        if (compControl == TIGHT_FILL) {
+            pos += tpix;
+            return;
+        }
+        if (compControl == TIGHT_JPEG) {
+            skip(readCompactLen());
+            return;
+        }
+        if (compControl > TIGHT_MAX_SUBENCODING)
+            throw new IOException("Incorrect tight subencoding: " + compControl);
+
+        int rowSize = w * tpix;
+        if ((compControl & TIGHT_EXPLICIT_FILTER) != 0) {
+            int filter = readU8();
+            if (filter == TIGHT_FILTER_PALETTE) {
+                int numColors = readU8() + 1;
+                pos += numColors * tpix;
+                rowSize = numColors == 2 ? (w + 7) / 8 : w;
+            } else if (filter != TIGHT_FILTER_COPY && filter != TIGHT_FILTER_GRADIENT) {
+                throw new IOException("Incorrect tight filter id: " + filter);
+            }
+        }
+        int dataSize = h * rowSize;
+        if (dataSize < TIGHT_MIN_TO_COMPRESS)
+            pos += dataSize;
+        else
+            skip(readCompactLen());
+    }
+
+    private void skip(int n) {
+        pos += n;
+    }
+
+    private int readCompactLen() throws EOFException {
+        int b = readU8();
+        int len = b & 0x7F;
+        if ((b & 0x80) != 0) {
+            b = readU8();
+            len |= (b & 0x7F) << 7;
+            if ((b & 0x80) != 0)
+                len |= readU8() << 14;
+        }
+        return len;
+    }
+
+    private int readU8() throws EOFException {
+        if (pos >= stream.length)
+            throw new EOFException();
+        return stream[pos++] & 0xFF;
+    }
+
+    private int readU16() throws EOFException {
+        return readU8() << 8 | readU8();
+    }
+
+    private int readInt() throws EOFException {
+        return readU16() << 16 | readU16();
+    }
+}
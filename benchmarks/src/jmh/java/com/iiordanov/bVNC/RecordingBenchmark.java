@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Decodes the ZRLE, Tight and TightZstd rectangles of a session recorded by SessionRecorder,
+ * from the start of the recording each time, as the compression streams carry on from one
+ * rectangle to the next. JPEG rectangles are left out, as they are decoded by Android.
+ * Besides recordings per second, the pixels and bytes counters give the pixels decoded and
+ * the bytes of rectangle data read per microsecond, the latter being MB/s.
+ *
+ * There is no default recording, one has to be given with -p recording=file.fbs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RecordingBenchmark {
+    @Param
+    public String recording;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long pixels;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pixels = 0;
+            bytes = 0;
+        }
+    }
+
+    private List<Recording.Rect> rects;
+    private long rectPixels;
+    private long rectBytes;
+    private PixelConverter converter;
+    private int tpix;
+    private int stride;
+    private int[] pixels;
+    private ForkJoinPool pool;
+
+    private byte[] inflated = new byte[ZlibInStream.defaultBufSize * 4];
+    private int[] tileOffsets = new int[0];
+    private final int[] palette = new int[256];
+    private final TightFilters.GradientRows rows = new TightFilters.GradientRows();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Recording r = Recording.load(new File(recording));
+        if (r.bitsPerPixel == 32) {
+            converter = new PixelConverter.TrueColor();
+        } else if (r.bitsPerPixel == 16) {
+            converter = new PixelConverter.Rgb565();
+        } else {
+            converter = new PixelConverter.Indexed(ColorModel256.colors);
+        }
+        tpix = r.bytesPerTightPixel();
+
+        rects = new ArrayList<Recording.Rect>();
+        int width = 0;
+        int height = 0;
+        for (Recording.Rect rect : r.rects) {
+            if (rect.encoding == Recording.ENCODING_ZRLE || rect.encoding == Recording.ENCODING_TIGHT ||
+                    rect.encoding == Recording.ENCODING_TIGHT_ZSTD) {
+                rects.add(rect);
+                rectPixels += rect.w * rect.h;
+                rectBytes += rect.data.length;
+                width = Math.max(width, rect.x + rect.w);
+                height = Math.max(height, rect.y + rect.h);
+            }
+        }
+        if (rects.isEmpty())
+            throw new IllegalArgumentException(recording + " has no ZRLE, Tight or TightZstd rectangles");
+        stride = width;
+        pixels = new int[width * height];
+        pool = new ForkJoinPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int[] decode(Counters counters) throws Exception {
+        ZlibInStream zis = new ZlibInStream();
+        Inflater[] inflaters = new Inflater[4];
+        TightZstdInflater[] zstdInflaters = new TightZstdInflater[4];
+        for (Recording.Rect rect : rects) {
+            if (rect.encoding == Recording.ENCODING_ZRLE) {
+                decodeZrle(zis, rect);
+            } else {
+                decodeTight(inflaters, zstdInflaters, rect, rect.encoding == Recording.ENCODING_TIGHT_ZSTD);
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            if (inflaters[i] != null)
+                inflaters[i].end();
+            if (zstdInflaters[i] != null)
+                zstdInflaters[i].end();
+        }
+        counters.pixels += rectPixels;
+        counters.bytes += rectBytes;
+        return pixels;
+    }
+
+    /**
+     * Inflates a ZRLE rectangle in full and decodes its tiles, as ZrleDecoder does.
+     */
+    private void decodeZrle(ZlibInStream zis, Recording.Rect rect) throws Exception {
+        int nBytes = rect.data.length - 4;
+        zis.setUnderlying(new MemInStream(rect.data, 4, nBytes), nBytes);
+        int len = 0;
+        while (true) {
+            if (inflated.length - len < ZlibInStream.defaultBufSize)
+                inflated = Arrays.copyOf(inflated, inflated.length * 2);
+            int n = zis.readAvailable(inflated, len, inflated.length - len);
+            if (n == 0)
+                break;
+            len += n;
+        }
+        zis.reset();
+
+        int numTiles = ((rect.w + ZrleTileDecoder.TILE_SIZE - 1) / ZrleTileDecoder.TILE_SIZE) *
+                ((rect.h + ZrleTileDecoder.TILE_SIZE - 1) / ZrleTileDecoder.TILE_SIZE);
+        if (tileOffsets.length < numTiles)
+            tileOffsets = new int[numTiles];
+        int cpix = converter.bytesPerCompressedPixel;
+        ZrleTileDecoder.findTiles(inflated, len, rect.w, rect.h, cpix, tileOffsets);
+        pool.invoke(new ZrleTileDecoder.TileTask(inflated, tileOffsets, 0, numTiles, rect.w, rect.h, cpix,
+                converter.lookupTable(), pixels, rect.y * stride + rect.x, stride));
+    }
+
+    /**
+     * Inflates a Tight rectangle with its stream and undoes its filter, as TightDecoder does.
+     */
+    private void decodeTight(Inflater[] inflaters, TightZstdInflater[] zstdInflaters, Recording.Rect rect,
+                             boolean zstd) throws Exception {
+        byte[] data = rect.data;
+        int pos = 0;
+        int compControl = data[pos++] & 0xFF;
+        for (int stream = 0; stream < 4; stream++) {
+            if ((compControl & 1) != 0) {
+                inflaters[stream] = null;
+                if (zstdInflaters[stream] != null) {
+                    zstdInflaters[stream].end();
+                    zstdInflaters[stream] = null;
+                }
+            }
+            compControl >>= 1;
+        }
+
+        int offset = rect.y * stride + rect.x;
+        if (compControl == Recording.TIGHT_FILL) {
+            int color = converter.tightPixel(data, pos);
+            for (int y = 0; y < rect.h; y++) {
+                Arrays.fill(pixels, offset + y * stride, offset + y * stride + rect.w, color);
+            }
+            return;
+        }
+        if (compControl == Recording.TIGHT_JPEG)
+            return;
+
+        int numColors = 0;
+        boolean gradient = false;
+        int rowSize = rect.w * tpix;
+        if ((compControl & Recording.TIGHT_EXPLICIT_FILTER) != 0) {
+            int filter = data[pos++] & 0xFF;
+            if (filter == Recording.TIGHT_FILTER_PALETTE) {
+                numColors = (data[pos++] & 0xFF) + 1;
+                converter.convertTight(data, pos, palette, 0, numColors);
+                pos += numColors * tpix;
+                rowSize = numColors == 2 ? (rect.w + 7) / 8 : rect.w;
+            } else if (filter == Recording.TIGHT_FILTER_GRADIENT) {
+                gradient = true;
+            }
+        }
+
+        int dataSize = rect.h * rowSize;
+        byte[] src = data;
+        if (dataSize >= Recording.TIGHT_MIN_TO_COMPRESS) {
+            int b = data[pos++] & 0xFF;
+            int len = b & 0x7F;
+            if ((b & 0x80) != 0) {
+                b = data[pos++] & 0xFF;
+                len |= (b & 0x7F) << 7;
+                if ((b & 0x80) != 0)
+                    len |= (data[pos++] & 0xFF) << 14;
+            }
+            int stream = compControl & 0x03;
+            if (inflated.length < dataSize)
+                inflated = new byte[dataSize * 2];
+            if (zstd) {
+                if (zstdInflaters[stream] == null)
+                    zstdInflaters[stream] = new TightZstdInflater();
+                zstdInflaters[stream].setInput(data, pos, len);
+                zstdInflaters[stream].inflate(inflated, 0, dataSize);
+            } else {
+                if (inflaters[stream] == null)
+                    inflaters[stream] = new Inflater();
+                inflaters[stream].setInput(data, pos, len);
+                inflaters[stream].inflate(inflated, 0, dataSize);
+            }
+            src = inflated;
+        } else {
+            src = Arrays.copyOfRange(data, pos, pos + dataSize);
+        }
+
+        if (numColors == 2) {
+            TightFilters.decodeMono(pixels, offset, stride, rect.w, rect.h, src, palette);
+        } else if (numColors != 0) {
+            TightFilters.decodePalette(pixels, offset, stride, rect.w, rect.h, src, palette);
+        } else if (gradient) {
+            if (tpix == 2) {
+                TightFilters.decodeGradient16(pixels, offset, stride, rect.w, rect.h, src, rows);
+            } else {
+                TightFilters.decodeGradient(pixels, offset, stride, rect.w, rect.h, src, rows);
+            }
+        } else {
+            TightFilters.decodeCopy(converter, pixels, offset, stride, rect.w, rect.h, src);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Decompresses a full screen sent as TightZstd true color rectangles on a single stream,
+ * the way a server splits a large update. Scores are in nanoseconds per pixel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TightZstdBenchmark {
+    static final int W = 1920;
+    static final int H = 1080;
+    static final int PIXELS = W * H;
+    // Height of the bands the screen is split into, one rectangle each.
+    static final int RECT_H = 8;
+
+    @Param({Corpus.DESKTOP, Corpus.PHOTO})
+    public String content;
+
+    private byte[][] rects;
+    private int[] rectLengths;
+    private byte[] inflated;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int[] screen = Corpus.screen(content, W, H);
+        int n = (H + RECT_H - 1) / RECT_H;
+        rects = new byte[n][];
+        rectLengths = new int[n];
+        inflated = new byte[W * RECT_H * 3];
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZstdOutputStream zstd = new ZstdOutputStream(out, 3);
+        for (int i = 0; i < n; i++) {
+            int h = Math.min(RECT_H, H - i * RECT_H);
+            byte[] rgb = Corpus.tightRgb(screen, i * RECT_H * W, W, W, h);
+            rectLengths[i] = rgb.length;
+            zstd.write(rgb);
+            zstd.flush();
+            rects[i] = out.toByteArray();
+            out.reset();
+        }
+        zstd.close();
+
+        // Make sure the benchmark decodes what was encoded.
+        TightZstdInflater inflater = new TightZstdInflater();
+        for (int i = 0; i < n; i++) {
+            inflater.setInput(rects[i], 0, rects[i].length);
+            inflater.inflate(inflated, 0, rectLengths[i]);
+            int h = Math.min(RECT_H, H - i * RECT_H);
+            byte[] rgb = Corpus.tightRgb(screen, i * RECT_H * W, W, W, h);
+            if (!Arrays.equals(rgb, Arrays.copyOf(inflated, rgb.length)))
+                throw new IllegalStateException("TightZstd corpus does not round-trip");
+        }
+        inflater.end();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public byte[] inflate() throws Exception {
+        TightZstdInflater inflater = new TightZstdInflater();
+        for (int i = 0; i < rects.length; i++) {
+            inflater.setInput(rects[i], 0, rects[i].length);
+            inflater.inflate(inflated, 0, rectLengths[i]);
+        }
+        inflater.end();
+        return inflated;
+    }
+}
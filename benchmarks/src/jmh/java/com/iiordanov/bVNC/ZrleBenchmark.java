@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2012-2019 Iordan Iordanov
+ * <p>
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Decodes one full-screen ZRLE rectangle. Scores are in nanoseconds per pixel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ZrleBenchmark {
+    static final int W = 1920;
+    static final int H = 1080;
+    static final int PIXELS = W * H;
+
+    @Param({Corpus.DESKTOP, Corpus.PHOTO})
+    public String content;
+
+    @Param({"1", "4", "8"})
+    public int threads;
+
+    private byte[] compressed;
+    private byte[] tiles;
+    private int tilesLength;
+    private byte[] scratch;
+    private int[] offsets;
+    private int numTiles;
+    private int[] pixels;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int[] screen = Corpus.screen(content, W, H);
+        tiles = Corpus.zrleTiles(screen, W, H);
+        tilesLength = tiles.length;
+        compressed = Corpus.deflate(tiles);
+        scratch = new byte[tilesLength + ZlibInStream.defaultBufSize];
+        offsets = new int[((W + 63) / 64) * ((H + 63) / 64)];
+        numTiles = ZrleTileDecoder.findTiles(tiles, tilesLength, W, H, 3, offsets);
+        pixels = new int[PIXELS];
+        pool = new ForkJoinPool(threads);
+
+        // Make sure the benchmark decodes what was encoded.
+        pool.invoke(new ZrleTileDecoder.TileTask(tiles, offsets, 0, numTiles, W, H, 3, null, pixels, 0, W));
+        if (!Arrays.equals(screen, pixels))
+            throw new IllegalStateException("ZRLE corpus does not round-trip");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * The single-threaded inflate phase, including the scan for tile boundaries.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public int inflate() throws Exception {
+        ZlibInStream zis = new ZlibInStream();
+        zis.setUnderlying(new MemInStream(compressed, 0, compressed.length), compressed.length);
+        byte[] out = scratch;
+        int len = 0;
+        int n;
+        while ((n = zis.readAvailable(out, len, out.length - len)) > 0)
+            len += n;
+        zis.reset();
+        return ZrleTileDecoder.findTiles(out, len, W, H, 3, offsets);
+    }
+
+    /**
+     * The pixel phase, on as many threads as the threads parameter.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public int[] decodeTiles() {
+        pool.invoke(new ZrleTileDecoder.TileTask(tiles, offsets, 0, numTiles, W, H, 3, null, pixels, 0, W));
+        return pixels;
+    }
+}